@@ -0,0 +1,183 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * binary capture of received data, sent data and connection events
+ *
+ * data file:
+ *   header: magic "BLECAP01", long wall clock ms and long elapsedRealtimeNanos at start
+ *   records: long elapsedRealtimeNanos, byte type, int length, length bytes
+ * index file (same name + ".idx"):
+ *   entries: long elapsedRealtimeNanos, long offset of first record at or after this time.
+ *   written every INDEX_INTERVAL_NANOS or INDEX_INTERVAL_BYTES, so seek() only has to scan a small range
+ *   entries are collected in memory and written every INDEX_BUFFER_ENTRIES and on close, so recording data
+ *   doesn't need a syscall. if the app is killed, the last entries are missing and seek() starts earlier
+ *
+ * records are copied into memory mapped windows without formatting. methods can be called from any thread.
+ * after an I/O error, capture stops silently
+ */
+final class CaptureFile {
+
+    static final byte TYPE_RX = 1;
+    static final byte TYPE_TX = 2;
+    static final byte TYPE_EVENT = 3;
+
+    static final byte[] MAGIC = {'B', 'L', 'E', 'C', 'A', 'P', '0', '1'};
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 13;
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final String TAG = "CaptureFile";
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final long INDEX_INTERVAL_NANOS = 1_000_000_000L;
+    private static final long INDEX_INTERVAL_BYTES = 1024 * 1024;
+    private static final int INDEX_BUFFER_ENTRIES = 256;
+
+    private final File file;
+    private RandomAccessFile raf, indexRaf;
+    private FileChannel channel, indexChannel;
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_BUFFER_ENTRIES * 16); // entries not yet written
+    private MappedByteBuffer window;
+    private long position;
+    private long indexTime, indexPosition = -INDEX_INTERVAL_BYTES; // so first record is indexed
+    private boolean closed;
+
+    CaptureFile(File file) throws IOException {
+        this.file = file;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            indexRaf = new RandomAccessFile(new File(file.getPath() + INDEX_SUFFIX), "rw");
+            indexRaf.setLength(0);
+            indexChannel = indexRaf.getChannel();
+            map(HEADER_SIZE);
+        } catch (IOException e) {
+            closeQuietly(raf);
+            closeQuietly(indexRaf);
+            throw e;
+        }
+        window.put(MAGIC);
+        window.putLong(System.currentTimeMillis());
+        window.putLong(SystemClock.elapsedRealtimeNanos());
+        position = HEADER_SIZE;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void rx(byte[] data) {
+        record(TYPE_RX, data, 0, data.length);
+    }
+
+    void tx(byte[] data, int offset, int length) {
+        record(TYPE_TX, data, offset, length);
+    }
+
+    void event(String text) {
+        byte[] data = text.getBytes(Charset.forName("UTF-8"));
+        record(TYPE_EVENT, data, 0, data.length);
+    }
+
+    synchronized void close() {
+        if(closed)
+            return;
+        closed = true;
+        window = null;
+        try {
+            raf.setLength(position); // remove unused part of last window
+        } catch (IOException ignored) {
+        }
+        try {
+            writeIndex();
+        } catch (IOException ignored) {
+        }
+        closeQuietly(raf); // also closes channel
+        closeQuietly(indexRaf);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if(closeable != null)
+                closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void record(byte type, byte[] data, int offset, int length) {
+        if(closed)
+            return;
+        long time = SystemClock.elapsedRealtimeNanos();
+        try {
+            if(time - indexTime >= INDEX_INTERVAL_NANOS || position - indexPosition >= INDEX_INTERVAL_BYTES) {
+                if(!indexBuffer.hasRemaining())
+                    writeIndex();
+                indexBuffer.putLong(time).putLong(position);
+                indexTime = time;
+                indexPosition = position;
+            }
+            int size = RECORD_HEADER_SIZE + length;
+            if(window.remaining() < size)
+                map(size);
+            window.putLong(time);
+            window.put(type);
+            window.putInt(length);
+            window.put(data, offset, length);
+            position += size;
+        } catch (IOException e) {
+            Log.w(TAG, "capture stopped", e);
+            close();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        indexBuffer.flip();
+        while(indexBuffer.hasRemaining())
+            indexChannel.write(indexBuffer);
+        indexBuffer.clear();
+    }
+
+    private void map(int size) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW_SIZE, size));
+    }
+
+    /**
+     * offset of a record before timeNanos according to index,
+     * reading has to continue from there until the first record at timeNanos is reached
+     */
+    static long seek(File file, long timeNanos) throws IOException {
+        RandomAccessFile indexRaf = new RandomAccessFile(new File(file.getPath() + INDEX_SUFFIX), "r");
+        try {
+            FileChannel indexChannel = indexRaf.getChannel();
+            long count = indexChannel.size() / 16;
+            if(count == 0)
+                return HEADER_SIZE;
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, count * 16);
+            int low = 0, high = (int) count - 1, found = -1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                if(index.getLong(mid * 16) < timeNanos) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? HEADER_SIZE : index.getLong(found * 16 + 8);
+        } finally {
+            indexRaf.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * replay CaptureFile into SerialListener, like SerialSocket does for a real device.
+ *   - onSerialConnect is called at start, then received data is passed on. sent data and events are skipped
+ *   - speed 1 = recorded timing, N = N times faster, <= 0 = as fast as possible
+ *   - end of file is reported as onSerialIoError, as after device disconnect
+ *   - reading pauses while backlog is full, so data is not read faster than it is consumed
+ * runs in own thread
+ */
+class CaptureReplay implements Runnable {
+
+    interface Backlog {
+        boolean isFull();
+    }
+
+    private static final String TAG = "CaptureReplay";
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int BACKLOG_WAIT = 5; // ms
+
+    private final File file;
+    private final double speed;
+    private final SerialListener listener;
+    private final Backlog backlog;
+    private final Thread thread;
+    private volatile boolean canceled;
+
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long firstTime, startTime; // capture time of first record, System.nanoTime() when replayed
+
+    CaptureReplay(File file, double speed, SerialListener listener, Backlog backlog) {
+        this.file = file;
+        this.speed = speed;
+        this.listener = listener;
+        this.backlog = backlog;
+        thread = new Thread(this, TAG);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void cancel() {
+        canceled = true;
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        long count = 0, bytes = 0;
+        long replayStart = System.nanoTime();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            long size = channel.size();
+            byte[] magic = new byte[CaptureFile.MAGIC.length];
+            if(size >= CaptureFile.HEADER_SIZE)
+                map(0, CaptureFile.HEADER_SIZE, size).get(magic);
+            if(!Arrays.equals(magic, CaptureFile.MAGIC)) {
+                listener.onSerialConnectError(new IOException("not a capture file"));
+                return;
+            }
+            listener.onSerialConnect();
+            long pos = CaptureFile.HEADER_SIZE;
+            while(!canceled && pos + CaptureFile.RECORD_HEADER_SIZE <= size) {
+                while(backlog.isFull())
+                    Thread.sleep(BACKLOG_WAIT);
+                if(pos + CaptureFile.RECORD_HEADER_SIZE > windowStart + window.capacity())
+                    map(pos, CaptureFile.RECORD_HEADER_SIZE, size);
+                int offset = (int) (pos - windowStart);
+                long time = window.getLong(offset);
+                byte type = window.get(offset + 8);
+                int length = window.getInt(offset + 9);
+                int recordSize = CaptureFile.RECORD_HEADER_SIZE + length;
+                if(length < 0 || pos + recordSize > size)
+                    break; // truncated, e.g. app killed while capturing
+                if(pos + recordSize > windowStart + window.capacity()) {
+                    map(pos, recordSize, size);
+                    offset = 0;
+                }
+                pos += recordSize;
+                if(type != CaptureFile.TYPE_RX)
+                    continue;
+                byte[] data = new byte[length];
+                window.position(offset + CaptureFile.RECORD_HEADER_SIZE);
+                window.get(data);
+                pace(time);
+                listener.onSerialRead(data);
+                count++;
+                bytes += length;
+            }
+            long duration = (System.nanoTime() - replayStart) / 1000000;
+            Log.d(TAG, "replayed " + count + " chunks, " + bytes + " bytes in " + duration + " ms");
+            if(!canceled)
+                listener.onSerialIoError(new IOException("replay finished"));
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            if(!canceled)
+                listener.onSerialIoError(e);
+        } finally {
+            window = null;
+            try {
+                if(raf != null)
+                    raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private MappedByteBuffer map(long pos, int minSize, long fileSize) throws IOException {
+        windowStart = pos;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Math.max(WINDOW_SIZE, minSize), fileSize - pos));
+        return window;
+    }
+
+    /**
+     * wait until record time, relative to first record and scaled by speed
+     */
+    private void pace(long time) throws InterruptedException {
+        if(speed <= 0)
+            return;
+        long now = System.nanoTime();
+        if(startTime == 0) {
+            firstTime = time;
+            startTime = now;
+            return;
+        }
+        long wait = startTime + (long) ((time - firstTime) / speed) - now;
+        if(wait >= 1000000)
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+    }
+}
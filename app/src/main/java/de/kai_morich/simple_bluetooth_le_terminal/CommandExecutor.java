@@ -0,0 +1,84 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Intent;
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+
+/**
+ * serialized execution of start intents
+ *   - submit() only queues, intents are executed in order in handler thread
+ *   - a queued intent is replaced by a newer intent with same key (e.g. connect to same device), keeping its position
+ *   - at most TIME_BUDGET per handler message, remaining intents are executed in next message,
+ *     so a burst of intents doesn't delay other work in the handler thread
+ * only used in handler thread
+ */
+final class CommandExecutor {
+
+    interface Command {
+        void execute(Intent intent);
+    }
+
+    private static final long TIME_BUDGET = 4_000_000; // ns
+
+    private static final class Entry {
+        final String key; // null = never replaced
+        Intent intent;
+
+        Entry(String key, Intent intent) {
+            this.key = key;
+            this.intent = intent;
+        }
+    }
+
+    private final Handler handler;
+    private final Command command;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Runnable runRunnable = this::run;
+    private boolean posted;
+
+    CommandExecutor(Handler handler, Command command) {
+        this.handler = handler;
+        this.command = command;
+    }
+
+    /**
+     * returns false if a queued intent with same key was replaced
+     */
+    boolean submit(Intent intent, String key) {
+        if(key != null) {
+            for(Entry entry : queue) {
+                if(key.equals(entry.key)) {
+                    entry.intent = intent;
+                    return false;
+                }
+            }
+        }
+        queue.add(new Entry(key, intent));
+        if(!posted) {
+            posted = true;
+            handler.post(runRunnable);
+        }
+        return true;
+    }
+
+    void clear() {
+        queue.clear();
+        handler.removeCallbacks(runRunnable);
+        posted = false;
+    }
+
+    private void run() {
+        posted = false;
+        long deadline = System.nanoTime() + TIME_BUDGET;
+        Entry entry;
+        while((entry = queue.poll()) != null) {
+            command.execute(entry.intent);
+            if(!queue.isEmpty() && System.nanoTime() >= deadline) {
+                posted = true;
+                handler.post(runRunnable);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * serial executor of one device, so framing and broadcasts of a busy device
+ * neither delay its bluetooth thread nor other devices
+ *   - received data is consumed lock free in batches
+ *   - other work is posted as Runnable and runs after all data offered before
+ * offer() and post() from any thread. offer() is serialized by a lock, which is uncontended except
+ * while the previous socket of a reconnecting device still delivers, or with binder threads before API 26
+ */
+final class DispatchLane {
+
+    interface DataListener {
+        void onData(byte[] data);
+    }
+
+    private static final int QUEUE_CAPACITY = 1024; // chunks
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final DataListener listener;
+    private final SpscQueue<byte[]> queue = new SpscQueue<>(QUEUE_CAPACITY);
+    private final ArrayDeque<byte[]> overflow = new ArrayDeque<>(); // used while queue is full, guards producers
+    private volatile boolean overflowing;
+    private final AtomicBoolean posted = new AtomicBoolean(); // at most one drainRunnable in handler
+    private final Runnable drainRunnable = this::drain;
+
+    DispatchLane(String name, DataListener listener) {
+        this.listener = listener;
+        thread = new HandlerThread("DispatchLane " + name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    /**
+     * once queue was full, data goes to overflow until consumed, to keep order
+     */
+    void offer(byte[] data) {
+        synchronized (overflow) {
+            if(overflowing || !queue.offer(data)) {
+                overflowing = true;
+                overflow.add(data);
+            }
+        }
+        if(posted.compareAndSet(false, true))
+            handler.post(drainRunnable);
+    }
+
+    /**
+     * true once data would go to overflow
+     */
+    boolean isFull() {
+        return overflowing || queue.size() >= QUEUE_CAPACITY;
+    }
+
+    void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    /**
+     * drop pending work and stop thread
+     */
+    void close() {
+        handler.removeCallbacksAndMessages(null);
+        thread.quitSafely();
+    }
+
+    private void drain() {
+        posted.set(false); // data offered after this is consumed with next drain
+        byte[] data;
+        while((data = queue.poll()) != null)
+            listener.onData(data);
+        if(overflowing) {
+            ArrayDeque<byte[]> datas = new ArrayDeque<>();
+            synchronized (overflow) {
+                while((data = queue.poll()) != null)
+                    datas.add(data);
+                datas.addAll(overflow);
+                overflow.clear();
+                overflowing = false;
+            }
+            while((data = datas.poll()) != null)
+                listener.onData(data);
+        }
+    }
+}
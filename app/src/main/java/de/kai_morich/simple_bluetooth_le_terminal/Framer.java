@@ -0,0 +1,289 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * reassemble frames from received data chunks, which are split at arbitrary MTU boundaries.
+ *   - frames completely inside one chunk are copied once directly from the chunk
+ *   - only frames spanning multiple chunks are collected in buffer
+ * not thread safe, feed() has to be called from one thread at a time
+ */
+abstract class Framer {
+
+    interface FrameListener {
+        void onFrame(byte[] frame);
+    }
+
+    private static final String TAG = "Framer";
+    static final int MAX_FRAME_SIZE = 65536;
+
+    byte[] buffer = new byte[256]; // partial frame spanning chunks
+    int length;
+
+    /**
+     * names as used in framing_values and Tasker extra 'framing'. returns null for 'none'
+     */
+    static Framer create(String name, byte[] delimiter, int lengthSize) {
+        switch (name.toLowerCase()) {
+            case "none":      return null;
+            case "crlf":      return new Delimiter(new byte[]{'\r', '\n'});
+            case "lf":        return new Delimiter(new byte[]{'\n'});
+            case "cr":        return new Delimiter(new byte[]{'\r'});
+            case "delimiter": return new Delimiter(delimiter);
+            case "length":    return new LengthPrefixed(lengthSize);
+            case "slip":      return new Slip();
+            case "cobs":      return new Cobs();
+            default:          throw new IllegalArgumentException("unknown framing " + name);
+        }
+    }
+
+    /**
+     * frames without line ending
+     */
+    static boolean isBinary(String name) {
+        return name.equalsIgnoreCase("length") || name.equalsIgnoreCase("slip") || name.equalsIgnoreCase("cobs");
+    }
+
+    abstract void feed(byte[] data, FrameListener listener);
+
+    void reset() {
+        length = 0;
+    }
+
+    void append(byte[] src, int from, int to) {
+        int required = length + to - from;
+        if(required > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        System.arraycopy(src, from, buffer, length, to - from);
+        length = required;
+    }
+
+    void append(byte b) {
+        if(length == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        buffer[length++] = b;
+    }
+
+    /**
+     * frame consisting of buffer + src[from..to[
+     */
+    byte[] take(byte[] src, int from, int to) {
+        if(length == 0)
+            return Arrays.copyOfRange(src, from, to);
+        append(src, from, to);
+        byte[] frame = Arrays.copyOf(buffer, length);
+        length = 0;
+        return frame;
+    }
+
+    /**
+     * frames end with delimiter, delimiter is kept in frame
+     */
+    static class Delimiter extends Framer {
+        private final byte[] delimiter;
+        private final int[] failure; // for matched bytes, length of longest delimiter prefix that is also a suffix
+        private int matched; // number of delimiter bytes matched at end of buffer
+
+        Delimiter(byte[] delimiter) {
+            if(delimiter == null || delimiter.length == 0)
+                throw new IllegalArgumentException("empty delimiter");
+            this.delimiter = delimiter;
+            failure = new int[delimiter.length + 1];
+            for(int i = 1, k = 0; i < delimiter.length; i++) {
+                while(k > 0 && delimiter[i] != delimiter[k])
+                    k = failure[k];
+                if(delimiter[i] == delimiter[k])
+                    k++;
+                failure[i + 1] = k;
+            }
+        }
+
+        @Override
+        void feed(byte[] data, FrameListener listener) {
+            int start = 0;
+            for(int i = 0; i < data.length; i++) {
+                while(matched > 0 && data[i] != delimiter[matched])
+                    matched = failure[matched]; // e.g. \r\r\n after extra \r
+                if(data[i] == delimiter[matched])
+                    matched++;
+                if(matched == delimiter.length) {
+                    listener.onFrame(take(data, start, i + 1));
+                    start = i + 1;
+                    matched = 0;
+                } else if(length + i + 1 - start >= MAX_FRAME_SIZE) {
+                    listener.onFrame(take(data, start, i + 1)); // deliver overlong line in pieces
+                    start = i + 1;
+                }
+            }
+            append(data, start, data.length);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            matched = 0;
+        }
+    }
+
+    /**
+     * big endian length header of 1, 2 or 4 bytes, followed by payload. header is removed from frame
+     */
+    static class LengthPrefixed extends Framer {
+        private final int lengthSize;
+        private int headerRead;
+        private int frameLength;
+
+        LengthPrefixed(int lengthSize) {
+            if(lengthSize != 1 && lengthSize != 2 && lengthSize != 4)
+                throw new IllegalArgumentException("invalid length size " + lengthSize);
+            this.lengthSize = lengthSize;
+        }
+
+        @Override
+        void feed(byte[] data, FrameListener listener) {
+            int i = 0;
+            while(i < data.length) {
+                if(headerRead < lengthSize) {
+                    frameLength = (frameLength << 8) | (data[i++] & 0xff);
+                    if(++headerRead == lengthSize && (frameLength < 0 || frameLength > MAX_FRAME_SIZE)) {
+                        Log.w(TAG, "invalid frame length " + frameLength);
+                        reset(); // try to resync with next byte as header
+                    } else if(headerRead == lengthSize && frameLength == 0) {
+                        listener.onFrame(new byte[0]);
+                        reset();
+                    }
+                    continue;
+                }
+                int missing = frameLength - length;
+                if(data.length - i >= missing) {
+                    listener.onFrame(take(data, i, i + missing));
+                    i += missing;
+                    reset();
+                } else {
+                    append(data, i, data.length);
+                    i = data.length;
+                }
+            }
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            headerRead = 0;
+            frameLength = 0;
+        }
+    }
+
+    /**
+     * RFC 1055. empty frames are ignored
+     */
+    static class Slip extends Framer {
+        private static final byte END = (byte) 0xC0, ESC = (byte) 0xDB, ESC_END = (byte) 0xDC, ESC_ESC = (byte) 0xDD;
+        private boolean escape;
+        private boolean overflow; // discard until END
+
+        @Override
+        void feed(byte[] data, FrameListener listener) {
+            int start = 0;
+            for(int i = 0; i < data.length; i++) {
+                byte b = data[i];
+                if(escape) {
+                    escape = false;
+                    append(b == ESC_END ? END : b == ESC_ESC ? ESC : b);
+                    start = i + 1;
+                } else if(b == ESC) {
+                    append(data, start, i);
+                    escape = true;
+                    start = i + 1;
+                } else if(b == END) {
+                    if(overflow) {
+                        overflow = false;
+                        length = 0;
+                    } else if(length > 0 || i > start) {
+                        listener.onFrame(take(data, start, i));
+                    }
+                    start = i + 1;
+                }
+            }
+            append(data, start, data.length);
+            if(length > MAX_FRAME_SIZE) {
+                Log.w(TAG, "frame too long");
+                overflow = true;
+                length = 0;
+            }
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            escape = overflow = false;
+        }
+    }
+
+    /**
+     * consistent overhead byte stuffing with 0 as frame delimiter. invalid frames are dropped
+     */
+    static class Cobs extends Framer {
+        private boolean overflow; // discard until 0
+
+        @Override
+        void feed(byte[] data, FrameListener listener) {
+            int start = 0;
+            for(int i = 0; i < data.length; i++) {
+                if(data[i] != 0)
+                    continue;
+                if(overflow) {
+                    overflow = false;
+                    length = 0;
+                } else if(length > 0) {
+                    append(data, start, i);
+                    emit(buffer, 0, length, listener);
+                    length = 0;
+                } else if(i > start) {
+                    emit(data, start, i, listener);
+                }
+                start = i + 1;
+            }
+            append(data, start, data.length);
+            if(length > MAX_FRAME_SIZE) {
+                Log.w(TAG, "frame too long");
+                overflow = true;
+                length = 0;
+            }
+        }
+
+        private static void emit(byte[] src, int from, int to, FrameListener listener) {
+            int size = 0;
+            for(int pos = from; pos < to; ) {
+                int code = src[pos] & 0xff;
+                if(pos + code > to) {
+                    Log.w(TAG, "invalid cobs frame");
+                    return;
+                }
+                pos += code;
+                size += code - 1;
+                if(code < 0xff && pos < to)
+                    size++;
+            }
+            byte[] frame = new byte[size];
+            int out = 0;
+            for(int pos = from; pos < to; ) {
+                int code = src[pos++] & 0xff;
+                System.arraycopy(src, pos, frame, out, code - 1);
+                pos += code - 1;
+                out += code - 1;
+                if(code < 0xff && pos < to)
+                    frame[out++] = 0;
+            }
+            listener.onFrame(frame);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            overflow = false;
+        }
+    }
+}
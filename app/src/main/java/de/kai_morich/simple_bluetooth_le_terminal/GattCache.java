@@ -0,0 +1,65 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+/**
+ * persistent per device cache of the serial service layout found on last successful connect.
+ * stored as "service,read,write,indicate,mtu" string per MAC address in shared preferences
+ */
+final class GattCache {
+
+    static final class Entry {
+        final UUID service, read, write;
+        final boolean indicate; // CCCD enables indication instead of notification
+        final int mtu;          // confirmed by last MTU exchange, 0 = unknown
+
+        Entry(UUID service, UUID read, UUID write, boolean indicate, int mtu) {
+            this.service = service;
+            this.read = read;
+            this.write = write;
+            this.indicate = indicate;
+            this.mtu = mtu;
+        }
+
+        @Override
+        public String toString() {
+            return service + "," + read + "," + write + "," + indicate + "," + mtu;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    GattCache(Context context) {
+        preferences = context.getSharedPreferences("gatt_cache", Context.MODE_PRIVATE);
+    }
+
+    /**
+     * null if unknown or unreadable
+     */
+    Entry get(String address) {
+        String value = preferences.getString(address, null);
+        if(value == null)
+            return null;
+        String[] parts = value.split(",");
+        try {
+            return new Entry(UUID.fromString(parts[0]), UUID.fromString(parts[1]), UUID.fromString(parts[2]),
+                    Boolean.parseBoolean(parts[3]), Integer.parseInt(parts[4]));
+        } catch (RuntimeException e) {
+            remove(address);
+            return null;
+        }
+    }
+
+    void put(String address, Entry entry) {
+        String value = entry.toString();
+        if(!value.equals(preferences.getString(address, null)))
+            preferences.edit().putString(address, value).apply();
+    }
+
+    void remove(String address) {
+        preferences.edit().remove(address).apply();
+    }
+}
@@ -0,0 +1,230 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Android allows only one outstanding GATT operation, so all operations of SerialSocket and its delegates pass this queue
+ *   - control operations (setup, credits) run one at a time in priority order, FIFO within a priority
+ *   - a control operation waits until data writes in flight are confirmed, and data writes wait while
+ *     a control operation is pending, so control is not starved by bulk data
+ *   - a control operation that can't be started because the stack is busy is retried until its timeout.
+ *     if it is not completed by the matching gatt callback within timeout, it fails
+ *   - data writes are pipelined by SerialSocket, they fail if none is confirmed within DATA_TIMEOUT
+ * methods can be called from any thread, operations are started and timed out in handler thread
+ */
+final class GattQueue {
+
+    /**
+     * first is highest
+     */
+    enum Priority { Credits, Setup }
+
+    static final Object MTU = new Object(); // target of requestMtu, completed by onMtuChanged
+
+    abstract static class Operation {
+        final String name;
+        final Priority priority;
+        final Object target;  // characteristic, descriptor or MTU, as passed to complete() by gatt callback
+        final long timeout;   // ms
+        long deadline;
+
+        Operation(String name, Priority priority, Object target, long timeout) {
+            this.name = name;
+            this.priority = priority;
+            this.target = target;
+            this.timeout = timeout;
+        }
+
+        /**
+         * returns SerialSocket.STATUS_SUCCESS or other BluetoothStatusCodes value
+         */
+        abstract int start();
+
+        /**
+         * gatt status from callback
+         */
+        abstract void onComplete(int status);
+
+        /**
+         * start failed or timeout
+         */
+        abstract void onError(IOException e);
+    }
+
+    interface DataListener {
+        void onDataResume();  // no control operation pending, continue data writes
+        void onDataTimeout(); // data write not confirmed within DATA_TIMEOUT
+    }
+
+    private static final String TAG = "GattQueue";
+    private static final long RETRY_DELAY = 10; // ms
+    private static final long DATA_TIMEOUT = 5000; // ms
+
+    private final Handler handler;
+    private final DataListener dataListener;
+    private final ArrayDeque<Operation>[] pending;
+    private final Runnable nextRunnable = this::next;
+    private final Runnable retryRunnable = this::retry;
+    private final Runnable timeoutRunnable = this::timeout;
+    private final Runnable dataTimeoutRunnable;
+    private Operation current;
+    private int dataInFlight;
+
+    @SuppressWarnings("unchecked")
+    GattQueue(Handler handler, DataListener dataListener) {
+        this.handler = handler;
+        this.dataListener = dataListener;
+        dataTimeoutRunnable = dataListener::onDataTimeout;
+        pending = new ArrayDeque[Priority.values().length];
+        for(int i = 0; i < pending.length; i++)
+            pending[i] = new ArrayDeque<>();
+    }
+
+    void submit(Operation operation) {
+        synchronized (this) {
+            pending[operation.priority.ordinal()].add(operation);
+        }
+        handler.post(nextRunnable);
+    }
+
+    /**
+     * called by gatt callback. returns false if target is not the current operation, e.g. MTU changed by peer
+     */
+    boolean complete(Object target, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = current;
+            if(operation == null || operation.target != target)
+                return false;
+            current = null;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        operation.onComplete(status);
+        next();
+        return true;
+    }
+
+    /**
+     * data writes may only be started if true
+     */
+    synchronized boolean canStartData() {
+        return current == null && !hasPending();
+    }
+
+    /**
+     * called after data writes were started or confirmed
+     */
+    void onDataInFlight(int count) {
+        boolean start;
+        int previous;
+        synchronized (this) {
+            previous = dataInFlight;
+            start = count == 0 && previous > 0 && current == null && hasPending();
+            dataInFlight = count;
+        }
+        // restart timeout only when writes start or one is confirmed, not for each further write
+        if(count == 0) {
+            handler.removeCallbacks(dataTimeoutRunnable);
+        } else if(previous == 0 || count < previous) {
+            handler.removeCallbacks(dataTimeoutRunnable);
+            handler.postDelayed(dataTimeoutRunnable, DATA_TIMEOUT);
+        }
+        if(start)
+            handler.post(nextRunnable);
+    }
+
+    /**
+     * drop all operations without callback
+     */
+    void clear() {
+        synchronized (this) {
+            current = null;
+            dataInFlight = 0;
+            for(ArrayDeque<Operation> operations : pending)
+                operations.clear();
+        }
+        handler.removeCallbacks(nextRunnable);
+        handler.removeCallbacks(retryRunnable);
+        handler.removeCallbacks(timeoutRunnable);
+        handler.removeCallbacks(dataTimeoutRunnable);
+    }
+
+    private boolean hasPending() {
+        for(ArrayDeque<Operation> operations : pending)
+            if(!operations.isEmpty())
+                return true;
+        return false;
+    }
+
+    private void next() {
+        Operation operation = null;
+        boolean resume = false;
+        synchronized (this) {
+            if(current != null || dataInFlight > 0)
+                return;
+            for(ArrayDeque<Operation> operations : pending) {
+                operation = operations.poll();
+                if(operation != null)
+                    break;
+            }
+            if(operation == null) {
+                resume = true;
+            } else {
+                operation.deadline = SystemClock.elapsedRealtime() + operation.timeout;
+                current = operation;
+            }
+        }
+        if(resume)
+            dataListener.onDataResume();
+        else
+            start(operation);
+    }
+
+    private void start(Operation operation) {
+        int status = operation.start();
+        long remaining = operation.deadline - SystemClock.elapsedRealtime();
+        if(status == SerialSocket.STATUS_SUCCESS) {
+            Log.d(TAG, operation.name + " started");
+            handler.postDelayed(timeoutRunnable, Math.max(remaining, 0));
+        } else if(remaining > RETRY_DELAY) {
+            Log.d(TAG, operation.name + " busy, status=" + status);
+            handler.postDelayed(retryRunnable, RETRY_DELAY);
+        } else {
+            fail(operation, new IOException(operation.name + " failed, status=" + status));
+        }
+    }
+
+    private void retry() {
+        Operation operation;
+        synchronized (this) {
+            operation = current;
+        }
+        if(operation != null)
+            start(operation);
+    }
+
+    private void timeout() {
+        Operation operation;
+        synchronized (this) {
+            operation = current;
+        }
+        if(operation != null)
+            fail(operation, new IOException(operation.name + " timeout"));
+    }
+
+    private void fail(Operation operation, IOException e) {
+        synchronized (this) {
+            if(current != operation)
+                return;
+            current = null;
+        }
+        Log.w(TAG, e.getMessage());
+        operation.onError(e);
+        next();
+    }
+}
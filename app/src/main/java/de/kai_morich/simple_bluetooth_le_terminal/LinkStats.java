@@ -0,0 +1,150 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * throughput and latency counters of a connection
+ *   - rx counters are updated with atomic add, as gatt callbacks arrive in changing binder threads before API 26,
+ *     and the previous socket of a reconnecting device can still deliver
+ *   - other counters have one writer at a time, so updates are plain lazySet() without CAS:
+ *     writes are counted with SerialSocket writeBuffer lock held, dispatch in main thread, responses in lane thread
+ *   - snapshot() is called periodically from one thread and computes rates and percentiles since previous snapshot
+ */
+final class LinkStats {
+
+    /**
+     * latency histogram with power of 2 microsecond buckets
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 32;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final long[] previous = new long[BUCKETS];
+        private final long[] interval = new long[BUCKETS];
+
+        void add(long nanos) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(nanos / 1000, 0));
+            if(bucket >= BUCKETS)
+                bucket = BUCKETS - 1;
+            counts.lazySet(bucket, counts.get(bucket) + 1);
+        }
+
+        /**
+         * take values added since previous call, for percentile()
+         */
+        long next() {
+            long total = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                long count = counts.get(i);
+                interval[i] = count - previous[i];
+                previous[i] = count;
+                total += interval[i];
+            }
+            return total;
+        }
+
+        /**
+         * upper bound in microseconds of the bucket containing the percentile, -1 if no values
+         */
+        long percentile(long total, double percentile) {
+            if(total == 0)
+                return -1;
+            long rank = (long) Math.ceil(total * percentile);
+            long sum = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                sum += interval[i];
+                if(sum >= rank)
+                    return 1L << i;
+            }
+            return 1L << (BUCKETS - 1);
+        }
+    }
+
+    static final class Snapshot {
+        long rxBytes, txBytes;                       // total
+        long rxBytesPerSecond, rxChunksPerSecond, txBytesPerSecond, writesPerSecond;
+        int writeQueueSize;                          // bytes
+        long writeRttP50, writeRttP99;               // us, -1 if no writes
+        long dispatchP50, dispatchP99;               // us, -1 if no UI delivery
+        long responseP50, responseP99;               // us, -1 if no request answered
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "rx %s/s %d/s  tx %s/s %d/s  queue %s\nrtt %s/%s  ui %s/%s  response %s/%s (p50/p99)",
+                    bytes(rxBytesPerSecond), rxChunksPerSecond, bytes(txBytesPerSecond), writesPerSecond,
+                    bytes(writeQueueSize), time(writeRttP50), time(writeRttP99), time(dispatchP50), time(dispatchP99),
+                    time(responseP50), time(responseP99));
+        }
+
+        private static String bytes(long bytes) {
+            return bytes < 10000 ? bytes + "B" : bytes / 1000 + "kB";
+        }
+
+        private static String time(long micros) {
+            return micros < 0 ? "-" : micros < 10000 ? micros + "us" : micros / 1000 + "ms";
+        }
+    }
+
+    private final AtomicLong rxBytes = new AtomicLong();  // gatt callback threads
+    private final AtomicLong rxChunks = new AtomicLong(); // gatt callback threads
+    private final AtomicLong txBytes = new AtomicLong();  // writeBuffer lock
+    private final Histogram writeRtt = new Histogram();  // writeBuffer lock
+    private final Histogram dispatch = new Histogram();  // main thread
+    private final Histogram response = new Histogram();  // lane thread
+
+    private long lastTime;
+    private long lastRxBytes, lastRxChunks, lastTxBytes;
+
+    LinkStats() {
+        lastTime = SystemClock.elapsedRealtime();
+    }
+
+    void onRead(int length) {
+        rxBytes.addAndGet(length);
+        rxChunks.incrementAndGet();
+    }
+
+    void onWrite(int length, long rttNanos) {
+        txBytes.lazySet(txBytes.get() + length);
+        writeRtt.add(rttNanos);
+    }
+
+    void onDispatch(long latencyNanos) {
+        dispatch.add(latencyNanos);
+    }
+
+    void onResponse(long latencyNanos) {
+        response.add(latencyNanos);
+    }
+
+    Snapshot snapshot(int writeQueueSize) {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = Math.max(now - lastTime, 1);
+        Snapshot s = new Snapshot();
+        s.rxBytes = rxBytes.get();
+        s.txBytes = txBytes.get();
+        long chunks = rxChunks.get();
+        s.rxBytesPerSecond = (s.rxBytes - lastRxBytes) * 1000 / elapsed;
+        s.rxChunksPerSecond = (chunks - lastRxChunks) * 1000 / elapsed;
+        s.txBytesPerSecond = (s.txBytes - lastTxBytes) * 1000 / elapsed;
+        s.writeQueueSize = writeQueueSize;
+        long writes = writeRtt.next();
+        s.writesPerSecond = writes * 1000 / elapsed;
+        s.writeRttP50 = writeRtt.percentile(writes, 0.5);
+        s.writeRttP99 = writeRtt.percentile(writes, 0.99);
+        long dispatches = dispatch.next();
+        s.dispatchP50 = dispatch.percentile(dispatches, 0.5);
+        s.dispatchP99 = dispatch.percentile(dispatches, 0.99);
+        long responses = response.next();
+        s.responseP50 = response.percentile(responses, 0.5);
+        s.responseP99 = response.percentile(responses, 0.99);
+        lastTime = now;
+        lastRxBytes = s.rxBytes;
+        lastRxChunks = chunks;
+        lastTxBytes = s.txBytes;
+        return s;
+    }
+}
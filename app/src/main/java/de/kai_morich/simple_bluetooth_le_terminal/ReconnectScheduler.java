@@ -0,0 +1,75 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Random;
+
+/**
+ * schedule reconnect attempts with exponential backoff
+ *   - delay doubles from INITIAL_DELAY up to MAX_DELAY, randomized to 50..100% to not retry in lockstep with other devices
+ *   - last attempt is scheduled at timeout, afterwards schedule() returns -1
+ *   - at most one attempt is pending, cancel() removes it and resets the backoff
+ * methods can be called from any thread, attempts run in handler thread
+ */
+final class ReconnectScheduler {
+
+    private static final long INITIAL_DELAY = 1000; // ms
+    private static final long MAX_DELAY = 60000;    // ms
+
+    private final Handler handler;
+    private final Runnable attempt;
+    private final Runnable attemptRunnable = this::run;
+    private final Random random = new Random();
+    private long startTime; // 0 = not reconnecting
+    private int attempts;
+    private boolean scheduled;
+
+    ReconnectScheduler(Handler handler, Runnable attempt) {
+        this.handler = handler;
+        this.attempt = attempt;
+    }
+
+    /**
+     * timeout in ms since first failure, 0 = retry infinitely.
+     * returns delay until next attempt (0 if already pending), or -1 if timeout is reached
+     */
+    synchronized long schedule(long timeout) {
+        long now = SystemClock.elapsedRealtime();
+        if(startTime == 0)
+            startTime = now;
+        if(scheduled)
+            return 0;
+        long delay = Math.min(INITIAL_DELAY << Math.min(attempts, 16), MAX_DELAY);
+        delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+        if(timeout > 0 && now + delay - startTime > timeout) {
+            if(now - startTime >= timeout)
+                return -1;
+            delay = startTime + timeout - now;
+        }
+        attempts++;
+        scheduled = true;
+        handler.postDelayed(attemptRunnable, delay);
+        return delay;
+    }
+
+    synchronized void cancel() {
+        handler.removeCallbacks(attemptRunnable);
+        scheduled = false;
+        startTime = 0;
+        attempts = 0;
+    }
+
+    synchronized int getAttempts() {
+        return attempts;
+    }
+
+    private void run() {
+        synchronized (this) {
+            if(!scheduled)
+                return;
+            scheduled = false;
+        }
+        attempt.run();
+    }
+}
@@ -0,0 +1,183 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.regex.Pattern;
+
+/**
+ * correlate received frames with outstanding requests, so several requests can be in flight at once
+ *   - each frame is matched against outstanding requests oldest first, the first match completes the request
+ *   - matched frames are still passed on as usual
+ *   - a request not answered within its timeout fails
+ * methods can be called from any thread, onFrame() only from handler thread.
+ * listeners are called in handler thread, except by cancelAll()
+ */
+final class RequestTracker {
+
+    /**
+     * which received frame is the response
+     */
+    abstract static class Matcher {
+        abstract boolean matches(byte[] frame);
+
+        static Matcher prefix(String prefix) {
+            return frameId(prefix.getBytes(), 0);
+        }
+
+        /**
+         * found anywhere in frame decoded as string
+         */
+        static Matcher regex(String regex) {
+            Pattern pattern = Pattern.compile(regex);
+            return new Matcher() {
+                @Override
+                boolean matches(byte[] frame) {
+                    return pattern.matcher(new String(frame, Charset.defaultCharset())).find();
+                }
+            };
+        }
+
+        /**
+         * id bytes at offset, e.g. sequence number in binary frames
+         */
+        static Matcher frameId(byte[] id, int offset) {
+            return new Matcher() {
+                @Override
+                boolean matches(byte[] frame) {
+                    if(frame.length < offset + id.length)
+                        return false;
+                    for(int i = 0; i < id.length; i++)
+                        if(frame[offset + i] != id[i])
+                            return false;
+                    return true;
+                }
+            };
+        }
+    }
+
+    interface Listener {
+        void onResponse(byte[] response, long latencyNanos);
+        void onError(IOException e);
+    }
+
+    static final class Request {
+        private final Matcher matcher;
+        private final Listener listener;
+        private final long startNanos;
+        private final long deadline; // SystemClock.uptimeMillis()
+
+        private Request(Matcher matcher, Listener listener, long timeout) {
+            this.matcher = matcher;
+            this.listener = listener;
+            startNanos = System.nanoTime();
+            deadline = SystemClock.uptimeMillis() + timeout;
+        }
+    }
+
+    static final int MAX_OUTSTANDING = 64;
+
+    private final Handler handler;
+    private final ArrayList<Request> outstanding = new ArrayList<>(); // oldest first
+    private final Runnable timeoutRunnable = this::timeout;
+    private long scheduledDeadline = Long.MAX_VALUE; // of timeoutRunnable
+
+    RequestTracker(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * call before sending the request, so a fast response can't be missed.
+     * timeout in ms
+     */
+    Request submit(Matcher matcher, long timeout, Listener listener) throws IOException {
+        Request request = new Request(matcher, listener, timeout);
+        synchronized (this) {
+            if(outstanding.size() >= MAX_OUTSTANDING)
+                throw new IOException("too many outstanding requests");
+            outstanding.add(request);
+            if(request.deadline < scheduledDeadline)
+                schedule(request.deadline);
+        }
+        return request;
+    }
+
+    /**
+     * without listener call, e.g. if sending the request failed
+     */
+    synchronized void remove(Request request) {
+        outstanding.remove(request);
+    }
+
+    /**
+     * fail all outstanding requests, listeners are called in calling thread
+     */
+    void cancelAll(IOException e) {
+        ArrayList<Request> requests;
+        synchronized (this) {
+            requests = new ArrayList<>(outstanding);
+            outstanding.clear();
+            schedule(Long.MAX_VALUE);
+        }
+        for(Request request : requests)
+            request.listener.onError(e);
+    }
+
+    /**
+     * returns true if frame completed a request
+     */
+    boolean onFrame(byte[] frame) {
+        Request match = null;
+        synchronized (this) {
+            for(Iterator<Request> it = outstanding.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if(request.matcher.matches(frame)) {
+                    it.remove();
+                    match = request;
+                    break;
+                }
+            }
+        }
+        if(match == null)
+            return false;
+        match.listener.onResponse(frame, System.nanoTime() - match.startNanos);
+        return true;
+    }
+
+    /**
+     * requests are in deadline order only for equal timeouts, so check all
+     */
+    private void timeout() {
+        long now = SystemClock.uptimeMillis();
+        long next = Long.MAX_VALUE;
+        ArrayList<Request> expired = new ArrayList<>();
+        synchronized (this) {
+            for(Iterator<Request> it = outstanding.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if(request.deadline <= now) {
+                    it.remove();
+                    expired.add(request);
+                } else {
+                    next = Math.min(next, request.deadline);
+                }
+            }
+            schedule(next);
+        }
+        for(Request request : expired)
+            request.listener.onError(new IOException("timeout"));
+    }
+
+    /**
+     * Long.MAX_VALUE = none
+     */
+    private void schedule(long deadline) {
+        handler.removeCallbacks(timeoutRunnable);
+        scheduledDeadline = deadline;
+        if(deadline != Long.MAX_VALUE)
+            handler.postAtTime(timeoutRunnable, deadline);
+    }
+}
@@ -6,6 +6,8 @@ interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
     void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
+    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread, datas is reused after the call
     void onSerialIoError      (Exception e);
+    void onSerialWritable     (boolean writable);           // write queue below low (true) or above high (false) watermark
+    void onSerialLinkUpdate   (SerialSocket.LinkInfo info); // negotiated MTU, PHY, connection interval
 }
@@ -18,57 +18,604 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import android.util.Log;
+import android.view.Choreographer;
 import android.widget.Toast;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
+ * use listener chain: SerialSocket -> SerialService.Connection -> UI fragment
+ * multiple devices can be connected at the same time, the primary connection is shown in UI
  */
-public class SerialService extends Service implements SerialListener {
+public class SerialService extends Service {
 
     class SerialBinder extends Binder {
         SerialService getService() { return SerialService.this; }
     }
 
     private enum QueueType {Connect, ConnectError, Read, IoError}
+    private enum ConnectionState {Connecting, Connected, Reconnecting}
 
     private static class QueueItem {
         QueueType type;
         ArrayDeque<byte[]> datas;
+        long spillStart, spillEnd; // if datas == null, read data is in spillFile
         Exception e;
 
         QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
         QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
         QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
+        QueueItem(QueueType type, long spillStart) { this.type=type; this.spillStart=this.spillEnd=spillStart; }
 
         void init() { datas = new ArrayDeque<>(); }
         void add(byte[] data) { datas.add(data); }
     }
 
+    private static class PendingSend {
+        final String text, id;
+        final boolean flush;
+        final long expiry; // SystemClock.uptimeMillis()
+        final RequestTracker.Matcher matcher; // null = no response expected
+        final int timeout; // ms, for response
+
+        PendingSend(String text, String id, boolean flush, long expiry, RequestTracker.Matcher matcher, int timeout) {
+            this.text = text;
+            this.id = id;
+            this.flush = flush;
+            this.expiry = expiry;
+            this.matcher = matcher;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * per connection, from connect intent extras or UI
+     */
+    private static class Settings {
+        int reconnectTimeout = 1000 * 60 * 5; // 5 minutes
+        int coalesceDelay = 0; // ms, 0 = disabled
+        int writeQueueLimit = 1024 * 1024; // bytes, 0 = unbounded
+        int statsInterval; // s, for Tasker stats event, 0 = disabled
+        int taskerInterval, taskerBatchSize, taskerRate; // 0 = TaskerBatcher default
+        boolean taskerUriData; // also put received text into TASKER_BLE uri
+        SerialSocket.LinkProfile linkProfile = SerialSocket.LinkProfile.Balanced;
+        String framing = "none";
+        byte[] frameDelimiter;
+        int frameLengthSize = 2;
+        boolean captureEnabled;
+        int maxUiRate = MAX_UI_RATE; // only used while primary connection
+
+        Settings copy() {
+            Settings settings = new Settings();
+            settings.reconnectTimeout = reconnectTimeout;
+            settings.coalesceDelay = coalesceDelay;
+            settings.writeQueueLimit = writeQueueLimit;
+            settings.statsInterval = statsInterval;
+            settings.taskerInterval = taskerInterval;
+            settings.taskerBatchSize = taskerBatchSize;
+            settings.taskerRate = taskerRate;
+            settings.taskerUriData = taskerUriData;
+            settings.linkProfile = linkProfile;
+            settings.framing = framing;
+            settings.frameDelimiter = frameDelimiter;
+            settings.frameLengthSize = frameLengthSize;
+            settings.captureEnabled = captureEnabled;
+            settings.maxUiRate = maxUiRate;
+            return settings;
+        }
+
+        Framer createFramer() {
+            return Framer.create(framing, frameDelimiter, frameLengthSize);
+        }
+    }
+
+    /**
+     * one device of the connection pool with own socket, write queue, stats, capture and reconnect state.
+     * receives the SerialSocket callbacks. Tasker intents are tagged with the address,
+     * only the primary connection is passed on to the UI.
+     * framing and broadcasts run in the DispatchLane of the device, so the bluetooth thread
+     * only counts and hands over data, and a busy device doesn't delay other devices
+     */
+    private class Connection implements SerialListener {
+        final String address;           // null for replay
+        final boolean autoReconnect;    // connected by MAC address from Tasker
+        final Settings settings;        // changed only in main thread
+        final ReconnectScheduler reconnectScheduler;
+        final DispatchLane lane;
+        final RequestTracker requests;  // matched in lane thread
+        final TaskerBatcher taskerBatcher;
+        final Framer.FrameListener frameListener = this::onFrame;
+        final Runnable statsRunnable = this::onStatsTick;
+        final ArrayDeque<PendingSend> pendingSends = new ArrayDeque<>(); // sent when link is up, only used in main thread
+        final Runnable sendPendingRunnable = this::sendPending;
+        final Runnable expireRunnable = this::expirePendingSends;
+        volatile ConnectionState state = ConnectionState.Connecting;
+        volatile SerialSocket socket;   // null while replaying
+        volatile boolean connected;     // false = ignore data,errors while disconnecting
+        volatile boolean closed;        // removed from pool, no more reconnects
+        volatile Framer framer;         // used in lane thread, replaced on connect or framing change
+        volatile LinkStats stats;
+        volatile LinkStats.Snapshot statsSnapshot;
+        CaptureFile capture;
+        CaptureReplay replay;
+        StreamSender streamSender;
+        int statsTicks;
+
+        Connection(String address, boolean autoReconnect, Settings settings) {
+            this.address = address;
+            this.autoReconnect = autoReconnect;
+            this.settings = settings;
+            reconnectScheduler = new ReconnectScheduler(mainLooper, this::reconnect);
+            lane = new DispatchLane(String.valueOf(address), this::onLaneData);
+            requests = new RequestTracker(new Handler(lane.getLooper()));
+            taskerBatcher = new TaskerBatcher(SerialService.this, address, lane.getLooper());
+            taskerBatcher.configure(settings.taskerInterval, settings.taskerBatchSize, settings.taskerRate, settings.taskerUriData);
+        }
+
+        void connect(SerialSocket socket) throws IOException {
+            int writeQueueLimit = settings.writeQueueLimit;
+            socket.setCoalesceDelay(settings.coalesceDelay);
+            socket.setWriteQueueLimit(writeQueueLimit, writeQueueLimit / 4 * 3, writeQueueLimit / 4);
+            socket.setLinkProfile(settings.linkProfile);
+            framer = settings.createFramer();
+            if(settings.captureEnabled)
+                startCapture(socket);
+            startStats();
+            socket.setStats(stats);
+            socket.connect(this);
+            this.socket = socket;
+            connected = true;
+        }
+
+        void replay(File file, double speed) {
+            state = ConnectionState.Connected;
+            framer = settings.createFramer();
+            connected = true;
+            startStats();
+            replay = new CaptureReplay(file, speed, this, this::isReadBacklogFull);
+            replay.start();
+        }
+
+        /**
+         * stop everything, but keep capture file open for reconnect
+         */
+        void close() {
+            closed = true;
+            connected = false;
+            if(streamSender != null)
+                streamSender.cancel();
+            if(replay != null) {
+                replay.cancel();
+                replay = null;
+            }
+            mainLooper.removeCallbacks(statsRunnable);
+            mainLooper.removeCallbacks(sendPendingRunnable);
+            mainLooper.removeCallbacks(expireRunnable);
+            for (PendingSend send : pendingSends)
+                expire(send);
+            pendingSends.clear();
+            reconnectScheduler.cancel();
+            requests.cancelAll(new IOException("disconnected"));
+            taskerBatcher.close();
+            lane.close();
+            if(socket != null || state == ConnectionState.Reconnecting) { // socket is released while reconnecting
+                if(socket != null)
+                    socket.disconnect();
+                socket = null;
+                sendTaskerEventIntent(this, "disconnected");
+            }
+            stopCapture();
+        }
+
+        void startStats() {
+            stats = new LinkStats();
+            statsSnapshot = null;
+            statsTicks = 0;
+            mainLooper.removeCallbacks(statsRunnable);
+            mainLooper.postDelayed(statsRunnable, STATS_PERIOD);
+        }
+
+        private void onStatsTick() {
+            LinkStats stats = this.stats;
+            if(!connected || stats == null)
+                return;
+            SerialSocket socket = this.socket;
+            LinkStats.Snapshot snapshot = stats.snapshot(socket != null ? socket.getWriteQueueSize() : 0);
+            statsSnapshot = snapshot;
+            if(settings.statsInterval > 0 && ++statsTicks % settings.statsInterval == 0) {
+                Intent intent = createTaskerEventIntent(this, "stats");
+                intent.putExtra("rxBytes", snapshot.rxBytes);
+                intent.putExtra("txBytes", snapshot.txBytes);
+                intent.putExtra("rxRate", snapshot.rxBytesPerSecond);
+                intent.putExtra("rxChunkRate", snapshot.rxChunksPerSecond);
+                intent.putExtra("txRate", snapshot.txBytesPerSecond);
+                intent.putExtra("writeRate", snapshot.writesPerSecond);
+                intent.putExtra("writeQueue", snapshot.writeQueueSize);
+                intent.putExtra("rttP50", snapshot.writeRttP50);
+                intent.putExtra("rttP99", snapshot.writeRttP99);
+                intent.putExtra("uiP50", snapshot.dispatchP50);
+                intent.putExtra("uiP99", snapshot.dispatchP99);
+                intent.putExtra("responseP50", snapshot.responseP50);
+                intent.putExtra("responseP99", snapshot.responseP99);
+                sendBroadcast(intent);
+            }
+            mainLooper.postDelayed(statsRunnable, STATS_PERIOD);
+        }
+
+        /**
+         * reconnects continue in same file
+         */
+        void startCapture(SerialSocket socket) {
+            if(capture != null) {
+                socket.setCapture(capture);
+                return;
+            }
+            File dir = getExternalFilesDir("capture");
+            if(dir == null)
+                dir = new File(getFilesDir(), "capture");
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+            String name = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                    + "-" + address.replace(":", "") + ".bin";
+            try {
+                capture = new CaptureFile(new File(dir, name));
+                socket.setCapture(capture);
+                sendTaskerDebugIntent(String.format("Capturing to [%s]", capture.getFile()));
+            } catch (IOException e) {
+                sendTaskerDebugIntent(String.format("Failed to start capture: [%s]", e));
+            }
+        }
+
+        void stopCapture() {
+            if(capture == null)
+                return;
+            if(socket != null)
+                socket.setCapture(null);
+            capture.close();
+            lastCaptureFile = capture.getFile();
+            capture = null;
+        }
+
+        // Retry connection for a maximum of reconnectTimeout, with increasing interval between retries.
+        // Returns true if no retry is scheduled
+        private boolean retryConnection() {
+            if (!autoReconnect || closed) // connected from UI or disconnect() called
+                return true;
+            long delay = reconnectScheduler.schedule(settings.reconnectTimeout);
+            if (delay < 0)
+                return true;
+            state = ConnectionState.Reconnecting;
+            if (delay > 0)
+                sendTaskerDebugIntent(String.format("Trying to reconnect to [%s] in [%d] ms", address, delay));
+            return false;
+        }
+
+        // called in main thread while waiting for next attempt. Android has only a few GATT client slots,
+        // so the failed socket is not kept open for the whole backoff
+        private void releaseSocket(SerialSocket failed) {
+            if (closed || failed == null || socket != failed)
+                return;
+            failed.disconnect();
+            socket = null;
+        }
+
+        // called in main thread by reconnectScheduler
+        private void reconnect() {
+            if (closed)
+                return;
+            if (socket != null) {
+                socket.disconnect(); // previous attempt, ignore its remaining callbacks
+                socket = null;
+            }
+            sendTaskerDebugIntent(String.format("Trying to reconnect to [%s], attempt [%d]", address, reconnectScheduler.getAttempts()));
+            connectToMac(this);
+        }
+
+        // explicit connect while reconnecting, try now instead of waiting for backoff
+        void reconnectNow() {
+            reconnectScheduler.cancel();
+            reconnect();
+        }
+
+        /**
+         * buffer until link is up, dropped after ttl ms
+         */
+        void queueSend(PendingSend send) {
+            pendingSends.add(send);
+            scheduleExpire();
+            if (state == ConnectionState.Connected)
+                mainLooper.post(sendPendingRunnable);
+        }
+
+        private void sendPending() {
+            long now = SystemClock.uptimeMillis();
+            PendingSend send;
+            while (state == ConnectionState.Connected && (send = pendingSends.poll()) != null) {
+                if (send.expiry < now)
+                    expire(send);
+                else
+                    send(this, send);
+            }
+            scheduleExpire();
+        }
+
+        private void expirePendingSends() {
+            long now = SystemClock.uptimeMillis();
+            for (Iterator<PendingSend> it = pendingSends.iterator(); it.hasNext(); ) {
+                PendingSend send = it.next();
+                if (send.expiry <= now) {
+                    it.remove();
+                    expire(send);
+                }
+            }
+            scheduleExpire();
+        }
+
+        private void scheduleExpire() {
+            mainLooper.removeCallbacks(expireRunnable);
+            long expiry = Long.MAX_VALUE;
+            for (PendingSend send : pendingSends)
+                expiry = Math.min(expiry, send.expiry);
+            if (expiry != Long.MAX_VALUE)
+                mainLooper.postAtTime(expireRunnable, expiry);
+        }
+
+        private void expire(PendingSend send) {
+            drop(send, String.format("Not connected to [%s], dropped string [%s]", address, send.text));
+        }
+
+        void drop(PendingSend send, String message) {
+            dropSend(address, send, message);
+        }
+
+        /**
+         * SerialListener, called in bluetooth thread
+         */
+        public void onSerialConnect() {
+            lane.post(this::dispatchConnect);
+        }
+
+        public void onSerialConnectError(Exception e) {
+            lane.post(() -> dispatchConnectError(e));
+        }
+
+        public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+
+        /**
+         * lane or UI read queue would have to buffer without bound, used to pause replay
+         */
+        boolean isReadBacklogFull() {
+            return lane.isFull() || (this == primary && listener != null && (readOverflowing || readQueue.size() >= READ_QUEUE_CAPACITY));
+        }
+
+        public void onSerialRead(byte[] data) {
+            if(connected) {
+                LinkStats stats = this.stats;
+                if(stats != null)
+                    stats.onRead(data.length);
+                lane.offer(data);
+            }
+        }
+
+        public void onSerialIoError(Exception e) {
+            lane.post(() -> dispatchIoError(e));
+        }
+
+        public void onSerialWritable(boolean writable) {
+            lane.post(() -> dispatchWritable(writable));
+        }
+
+        public void onSerialLinkUpdate(SerialSocket.LinkInfo info) {
+            lane.post(() -> dispatchLinkUpdate(info));
+        }
+
+        /**
+         * called in lane thread
+         */
+        private void dispatchConnect() {
+            sendTaskerDebugIntent(String.format("Connection to [%s] successful", address));
+            sendTaskerEventIntent(this, "connected");
+            reconnectScheduler.cancel();
+            state = ConnectionState.Connected;
+            mainLooper.post(sendPendingRunnable);
+            if(connected && this == primary) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialConnect();
+                            } else {
+                                queue1.add(new QueueItem(QueueType.Connect));
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.Connect));
+                    }
+                }
+            }
+        }
+
+        private void dispatchConnectError(Exception e) {
+            sendTaskerDebugIntent(String.format("SerialConnectError [%s] : [%s])", address, e));
+            sendTaskerEventIntent(this, "error");
+            boolean stopService = replay != null || retryConnection();
+            if (!stopService && e.getMessage() != null && e.getMessage().toLowerCase().startsWith("gatt status")) {
+                SerialSocket failed = socket;
+                mainLooper.post(() -> releaseSocket(failed));
+                return;
+            }
+
+            if(connected && this != primary) {
+                mainLooper.post(() -> disconnect(this));
+            } else if(connected) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialConnectError(e);
+                            } else {
+                                queue1.add(new QueueItem(QueueType.ConnectError, e));
+                                disconnect(this);
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.ConnectError, e));
+                        mainLooper.post(() -> disconnect(this));
+                    }
+                }
+            }
+        }
+
+        /**
+         * with framing, only complete frames are passed on
+         */
+        private void onLaneData(byte[] data) {
+            if(connected) {
+                Framer framer = this.framer;
+                if(framer == null)
+                    onFrame(data);
+                else
+                    framer.feed(data, frameListener);
+            }
+        }
+
+        private void onFrame(byte[] data) {
+            requests.onFrame(data);
+            taskerBatcher.add(data);
+            if(this == primary)
+                onPrimaryRead(this, data);
+        }
+
+        private void dispatchIoError(Exception e) {
+            sendTaskerDebugIntent(String.format("SerialIoError [%s] : [%s])", address, e));
+            sendTaskerEventIntent(this, "error");
+            boolean stopService = replay != null || retryConnection();
+            if (!stopService && e.getMessage() != null && e.getMessage().toLowerCase().startsWith("gatt status")) {
+                SerialSocket failed = socket;
+                mainLooper.post(() -> releaseSocket(failed));
+                return;
+            }
+
+            if(connected && this != primary) {
+                mainLooper.post(() -> disconnect(this));
+            } else if(connected) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null) {
+                                listener.onSerialIoError(e);
+                            } else {
+                                queue1.add(new QueueItem(QueueType.IoError, e));
+                                disconnect(this);
+                            }
+                        });
+                    } else {
+                        queue2.add(new QueueItem(QueueType.IoError, e));
+                        mainLooper.post(() -> disconnect(this));
+                    }
+                }
+            }
+        }
+
+        /**
+         * backpressure is a state, not an event, so it is not queued while UI is detached
+         */
+        private void dispatchWritable(boolean writable) {
+            sendTaskerEventIntent(this, writable ? "writable" : "backpressure");
+            if(connected && this == primary) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null)
+                                listener.onSerialWritable(writable);
+                        });
+                    }
+                }
+            }
+        }
+
+        private void dispatchLinkUpdate(SerialSocket.LinkInfo info) {
+            sendTaskerDebugIntent("Link [" + address + "] " + info);
+            Intent intent = createTaskerEventIntent(this, "link");
+            intent.putExtra("linkProfile", info.profile.name());
+            intent.putExtra("mtu", info.mtu);
+            intent.putExtra("txPhy", SerialSocket.LinkInfo.phyName(info.txPhy));
+            intent.putExtra("rxPhy", SerialSocket.LinkInfo.phyName(info.rxPhy));
+            intent.putExtra("interval", info.interval);
+            sendBroadcast(intent);
+            if(connected && this == primary) {
+                synchronized (SerialService.this) {
+                    if (listener != null) {
+                        mainLooper.post(() -> {
+                            if (listener != null)
+                                listener.onSerialLinkUpdate(info);
+                        });
+                    }
+                }
+            }
+        }
+    }
+
     private static final String TAG = "SerialService";
+    private static final int READ_QUEUE_CAPACITY = 1024; // chunks
+    private static final int DETACHED_MEMORY_LIMIT = 1024 * 1024; // bytes kept in queue2, more is spilled to file
+    private static final long DETACHED_SPILL_LIMIT = 64L * 1024 * 1024; // bytes, more is dropped
+    private static final int REPLAY_PAGE_SIZE = 64 * 1024; // bytes per onSerialRead() when replaying spillFile
+    private static final long STATS_PERIOD = 1000; // ms
+    private static final int SEND_TTL = 10000; // ms, default for sends while not connected
+    private static final int MAX_PENDING_SENDS = 256; // per connection
+    private static final int REQUEST_TIMEOUT = 5000; // ms, default until response
+    private static final int READ_BATCH_SIZE = 256; // chunks per onSerialRead() while attached
+    private static final int MAX_UI_RATE = 30; // default UI updates per second
+    private static final long READ_FRAME_BUDGET = 8_000_000; // ns per display frame for onSerialRead(), remaining data is delivered in next frame
 
     private final Handler mainLooper;
+    private final CommandExecutor commandExecutor;
     private final IBinder binder;
     private final ArrayDeque<QueueItem> queue1, queue2;
-    private final QueueItem lastRead;
+    private int queue2Bytes;
+    private SpillFile spillFile; // queue2 read data exceeding DETACHED_MEMORY_LIMIT
+    private long spillDropped;
 
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
-    private String macAddress;
+    // reads are passed from lane thread of primary connection to main thread (single consumer, lock free).
+    // producers are serialized by readOverflow lock, as the lane of the previous primary can still be producing
+    private final SpscQueue<byte[]> readQueue;
+    private final ArrayDeque<byte[]> readOverflow; // used while readQueue is full, guarded by itself
+    private volatile boolean readOverflowing;
+    private final AtomicBoolean readPosted; // at most one readFrameCallback in choreographer
+    private final Choreographer choreographer;
+    private final Choreographer.FrameCallback readFrameCallback;
+    private long readFrameTime;
+    private long readFrameInterval; // ns, from maxUiRate of primary connection
+    private ArrayDeque<byte[]> readSpare; // recycled after delivery to UI, only used in main thread
+    private final ArrayDeque<QueueItem> backlog = new ArrayDeque<>(); // queue1, queue2 items not yet delivered after attach(), only used in main thread
 
-    private int reconnectTimeout = 1000 * 60 * 5; // 5 minutes
-    long retryConnectionStartTime = 0;
+    private final Map<String, Connection> connections = new HashMap<>(); // by MAC address, only used in main thread
+    private volatile Connection primary; // shown in UI, can also be a replay
+    private volatile SerialListener listener;
+    private File lastCaptureFile;
+    private volatile long readPostTime; // System.nanoTime() when readFrameCallback was posted
+
+    private final Settings uiSettings = new Settings(); // for following connections from UI, changed by UI setters
 
     /**
      * Lifecylce
@@ -78,13 +625,26 @@ public class SerialService extends Service implements SerialListener {
         binder = new SerialBinder();
         queue1 = new ArrayDeque<>();
         queue2 = new ArrayDeque<>();
-        lastRead = new QueueItem(QueueType.Read);
+        readQueue = new SpscQueue<>(READ_QUEUE_CAPACITY);
+        readOverflow = new ArrayDeque<>();
+        readPosted = new AtomicBoolean();
+        choreographer = Choreographer.getInstance();
+        readFrameCallback = this::onReadFrame;
+        commandExecutor = new CommandExecutor(mainLooper, this::executeCommand);
+        setMaxUiRate(MAX_UI_RATE);
     }
 
     @Override
     public void onDestroy() {
         cancelNotification();
-        disconnect();
+        commandExecutor.clear();
+        disconnectAll();
+        synchronized (this) {
+            if(spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+        }
         super.onDestroy();
     }
 
@@ -105,71 +665,487 @@ public class SerialService extends Service implements SerialListener {
             return startFlag;
         }
         String command = intent.getStringExtra("command");
+        String macAddress = intent.getStringExtra("macAddress");
         Log.d(TAG, "Start intent command: " + command);
-        if (command != null && command.equalsIgnoreCase("connect") && intent.hasExtra("macAddress")) {
-            String macAddress = intent.getStringExtra("macAddress");
-            reconnectTimeout = intent.getIntExtra("reconnectTimeout", reconnectTimeout);
-            if (connected) {
-                sendTaskerDebugIntent(String.format("Already connected to MAC address: [%s], disconnecting first", this.macAddress));
-                disconnect();
-            }
-            sendTaskerDebugIntent(String.format("Establishing new BLE connection; macAddress: [%s], reconnectTimeout: [%d] ms", macAddress, reconnectTimeout));
-            connectToMac(macAddress);
+        boolean connect = command != null && command.equalsIgnoreCase("connect") && macAddress != null;
+        if (!commandExecutor.submit(intent, connect ? "connect " + macAddress : null))
+            sendTaskerDebugIntent(String.format("Connect to [%s] already queued", macAddress));
+        return startFlag;
+    }
+
+    /**
+     * called in main thread by commandExecutor, one intent at a time.
+     * connects to a device already connecting or connected are coalesced, sends are buffered while not connected
+     */
+    private void executeCommand(Intent intent) {
+        String command = intent.getStringExtra("command");
+        String macAddress = intent.getStringExtra("macAddress"); // target device, null = primary connection, or all for disconnect
+        if (command != null && command.equalsIgnoreCase("connect") && macAddress != null) {
+            Connection connection = connections.get(macAddress);
+            if (connection != null && connection.connected) {
+                switch (connection.state) {
+                    case Connecting:
+                        sendTaskerDebugIntent(String.format("Already connecting to MAC address: [%s]", macAddress));
+                        break;
+                    case Connected:
+                        sendTaskerDebugIntent(String.format("Already connected to MAC address: [%s]", macAddress));
+                        sendTaskerEventIntent(connection, "connected");
+                        break;
+                    case Reconnecting:
+                        sendTaskerDebugIntent(String.format("Reconnecting to MAC address: [%s] now", macAddress));
+                        connection.reconnectNow();
+                        break;
+                }
+                createNotification();
+                return;
+            }
+            if (connection != null)
+                close(connection); // failed before connecting
+            Settings settings = createSettings(intent);
+            sendTaskerDebugIntent(String.format("Establishing new BLE connection; macAddress: [%s], reconnectTimeout: [%d] ms", macAddress, settings.reconnectTimeout));
+            connection = new Connection(macAddress, true, settings);
+            connections.put(macAddress, connection);
+            if (primary == null)
+                setPrimary(connection);
+            connectToMac(connection);
             createNotification();
         } else if (command != null && command.equalsIgnoreCase("disconnect")) {
-            sendTaskerDebugIntent("Stopping BLE service");
-            disconnect();
+            if (macAddress == null) {
+                sendTaskerDebugIntent("Stopping BLE service");
+                disconnectAll();
+            } else {
+                Connection connection = connections.get(macAddress);
+                if (connection == null) {
+                    sendTaskerDebugIntent(String.format("Not connected to [%s], unable to disconnect", macAddress));
+                    return;
+                }
+                disconnect(connection);
+            }
+            createNotification();
+        } else if (command != null && command.equalsIgnoreCase("sendFile")) {
+            String uri = intent.getStringExtra("uri");
+            if (uri == null) {
+                sendTaskerDebugIntent("No uri extra, unable to send file");
+                return;
+            }
+            try {
+                sendStream(getConnection(macAddress), Uri.parse(uri), null);
+            } catch (IOException e) {
+                sendTaskerDebugIntent(String.format("Failed to send file [%s]: [%s]", uri, e));
+            }
+        } else if (command != null && command.equalsIgnoreCase("replay")) {
+            String path = intent.getStringExtra("file");
+            File file = path != null ? new File(path) : getCaptureFile();
+            if (file == null) {
+                sendTaskerDebugIntent("No file extra and no previous capture, unable to replay");
+                return;
+            }
+            replay(file, intent.getFloatExtra("speed", 1));
             createNotification();
-        } else if (command != null && command.equalsIgnoreCase("send")) {
+        } else if (command != null && (command.equalsIgnoreCase("send") || command.equalsIgnoreCase("request"))) {
             String text = intent.getStringExtra("text");
             if (text == null) {
                 sendTaskerDebugIntent("No text extra, unable to send");
-                return startFlag;
+                return;
+            }
+            RequestTracker.Matcher matcher = null;
+            if (command.equalsIgnoreCase("request")) {
+                matcher = createMatcher(intent);
+                if (matcher == null)
+                    return;
+            }
+            int ttl = intent.getIntExtra("ttl", SEND_TTL);
+            PendingSend send = new PendingSend(text, intent.getStringExtra("id"), intent.getBooleanExtra("flush", false),
+                    SystemClock.uptimeMillis() + ttl, matcher, intent.getIntExtra("timeout", REQUEST_TIMEOUT));
+            Connection connection = getConnection(macAddress);
+            if (connection == null) {
+                dropSend(macAddress, send, String.format("Not connected to [%s], dropped string [%s]", macAddress, text));
+            } else if (connection.state == ConnectionState.Connected && connection.pendingSends.isEmpty()) {
+                send(connection, send);
+            } else if (ttl <= 0) {
+                connection.drop(send, String.format("Not connected to [%s], dropped string [%s]", macAddress, text));
+            } else if (connection.pendingSends.size() >= MAX_PENDING_SENDS) {
+                connection.drop(send, String.format("Too many pending sends to [%s], dropped string [%s]", macAddress, text));
+            } else {
+                connection.queueSend(send);
             }
-            sendString(text);
         }
-        return startFlag;
     }
 
     /**
      * Api
+     *
+     * connect() from UI becomes the primary connection, other methods use the primary connection.
+     * Connections from Tasker run in parallel, one per MAC address
      */
     public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
-        connected = true;
+        String address = socket.getAddress();
+        Connection connection = connections.get(address);
+        if (connection != null) {
+            sendTaskerDebugIntent(String.format("Already connected to MAC address: [%s], disconnecting first", address));
+            close(connection);
+        }
+        connection = new Connection(address, false, uiSettings.copy());
+        connections.put(address, connection);
+        setPrimary(connection);
+        try {
+            connection.connect(socket);
+        } catch (IOException e) {
+            close(connection);
+            throw e;
+        }
     }
 
-    private void connectToMac(String macAddress) {
-        sendTaskerDebugIntent(String.format("Connecting to MAC address: [%s]...", macAddress));
-        this.macAddress = macAddress;
+    private void connectToMac(Connection connection) {
+        sendTaskerDebugIntent(String.format("Connecting to MAC address: [%s]...", connection.address));
         try {
             BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(macAddress);
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(connection.address);
             SerialSocket socket = new SerialSocket(getApplicationContext(), device);
-            connect(socket);
+            connection.connect(socket);
         } catch (Exception e) {
-            onSerialConnectError(e);
+            connection.onSerialConnectError(e);
         }
     }
 
+    /**
+     * disconnect primary connection
+     */
     public void disconnect() {
-        sendTaskerDebugIntent("Disconnecting");
-        macAddress = null; // Prevents reconnecting
-        connected = false; // ignore data,errors while disconnecting
+        Connection connection = primary;
+        if(connection != null)
+            disconnect(connection);
+        else
+            stopIfIdle();
+    }
+
+    private void disconnect(Connection connection) {
+        sendTaskerDebugIntent(String.format("Disconnecting [%s]", connection.address));
+        close(connection);
+        stopIfIdle();
+    }
+
+    private void disconnectAll() {
+        for (Connection connection : new ArrayList<>(connections.values()))
+            close(connection);
+        if (primary != null)
+            close(primary);
+        stopIfIdle();
+    }
+
+    /**
+     * remove from pool
+     */
+    private void close(Connection connection) {
+        if (connection.address != null && connections.get(connection.address) == connection)
+            connections.remove(connection.address);
+        if (primary == connection)
+            setPrimary(null);
+        connection.close();
+    }
+
+    private void stopIfIdle() {
+        if (!connections.isEmpty() || primary != null)
+            return;
         cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
-            sendTaskerEventIntent("disconnected");
-        }
         stopSelf();
     }
 
-    public void write(byte[] data) throws IOException {
-        if(!connected)
+    /**
+     * UI update rate follows the primary connection
+     */
+    private void setPrimary(Connection connection) {
+        primary = connection;
+        setMaxUiRate(connection != null ? connection.settings.maxUiRate : MAX_UI_RATE);
+    }
+
+    /**
+     * connection by MAC address, or primary connection if address is null
+     */
+    private Connection getConnection(String address) {
+        return address != null ? connections.get(address) : primary;
+    }
+
+    private static SerialSocket getSocket(Connection connection) throws IOException {
+        SerialSocket socket = connection != null && connection.connected ? connection.socket : null;
+        if(socket == null)
             throw new IOException("not connected");
-        socket.write(data);
+        return socket;
+    }
+
+    /**
+     * throws SerialSocket.WriteQueueFullException if write queue limit reached
+     */
+    public void write(byte[] data) throws IOException {
+        getSocket(primary).write(data);
+    }
+
+    /**
+     * callback is called in bluetooth thread when data is sent or connection failed.
+     * returns message id passed to callback
+     */
+    public long write(byte[] data, SerialSocket.WriteCallback callback) throws IOException {
+        return getSocket(primary).write(data, 0, callback);
+    }
+
+    /**
+     * if write queue limit reached, block up to timeout ms. not allowed in main thread
+     */
+    public void write(byte[] data, long timeout) throws IOException {
+        if(Looper.getMainLooper().getThread() == Thread.currentThread())
+            throw new IllegalStateException("blocking write in main thread");
+        getSocket(primary).write(data, timeout);
+    }
+
+    /**
+     * send content of uri in chunks, paced by write queue limit.
+     * progressListener is called in main thread, progress is also sent as Tasker event.
+     * throws if not connected or already sending, failing to open uri is reported by onSendFinished()
+     */
+    public void sendStream(Uri uri, StreamSender.ProgressListener progressListener) throws IOException {
+        sendStream(primary, uri, progressListener);
+    }
+
+    /**
+     * send command and pass the first received frame accepted by matcher to listener, or fail after timeout ms.
+     * several requests can be outstanding, a frame completes the oldest matching one.
+     * listener is called in lane thread of the connection, or in main thread on disconnect.
+     * throws if not connected or too many outstanding requests, then listener is not called
+     */
+    public void request(byte[] command, RequestTracker.Matcher matcher, long timeout, RequestTracker.Listener listener) throws IOException {
+        request(primary, command, matcher, timeout, listener);
+    }
+
+    private void request(Connection connection, byte[] command, RequestTracker.Matcher matcher, long timeout,
+                         RequestTracker.Listener listener) throws IOException {
+        SerialSocket socket = getSocket(connection);
+        RequestTracker.Request request = connection.requests.submit(matcher, timeout, new RequestTracker.Listener() {
+            @Override
+            public void onResponse(byte[] response, long latencyNanos) {
+                LinkStats stats = connection.stats;
+                if(stats != null)
+                    stats.onResponse(latencyNanos);
+                listener.onResponse(response, latencyNanos);
+            }
+
+            @Override
+            public void onError(IOException e) {
+                listener.onError(e);
+            }
+        });
+        try {
+            socket.write(command);
+        } catch (IOException e) {
+            connection.requests.remove(request);
+            throw e;
+        }
+    }
+
+    private void sendStream(Connection connection, Uri uri, StreamSender.ProgressListener progressListener) throws IOException {
+        SerialSocket socket = getSocket(connection);
+        if(connection.streamSender != null)
+            throw new IOException("send already running");
+        sendTaskerDebugIntent(String.format("Sending file [%s] to [%s]", uri, connection.address));
+        StreamSender sender = new StreamSender(socket, getContentResolver(), uri, new StreamSender.ProgressListener() {
+            @Override
+            public void onSendProgress(long sent, long total, long bytesPerSecond, long eta) {
+                Intent intent = createTaskerEventIntent(connection, "progress");
+                intent.putExtra("sent", sent);
+                intent.putExtra("total", total);
+                intent.putExtra("rate", bytesPerSecond);
+                intent.putExtra("eta", eta);
+                sendBroadcast(intent);
+                if(progressListener != null)
+                    mainLooper.post(() -> progressListener.onSendProgress(sent, total, bytesPerSecond, eta));
+            }
+
+            @Override
+            public void onSendFinished(long sent, Exception e) {
+                sendTaskerEventIntent(connection, e == null ? "sendFinished" : "sendFailed");
+                mainLooper.post(() -> {
+                    connection.streamSender = null;
+                    if(progressListener != null)
+                        progressListener.onSendFinished(sent, e);
+                });
+            }
+        });
+        connection.streamSender = sender;
+        sender.start();
+    }
+
+    public void cancelSendStream() {
+        Connection connection = primary;
+        if(connection != null && connection.streamSender != null)
+            connection.streamSender.cancel();
+    }
+
+    /**
+     * settings shown in UI: of primary connection, else for next connection from UI
+     */
+    private Settings getUiSettings() {
+        Connection connection = primary;
+        return connection != null ? connection.settings : uiSettings;
+    }
+
+    public SerialSocket.LinkProfile getLinkProfile() {
+        return getUiSettings().linkProfile;
+    }
+
+    /**
+     * applied to primary connection and used for next connections from UI
+     */
+    public void setLinkProfile(SerialSocket.LinkProfile linkProfile) {
+        uiSettings.linkProfile = linkProfile;
+        Connection connection = primary;
+        if(connection == null)
+            return;
+        connection.settings.linkProfile = linkProfile;
+        if(connection.connected && connection.socket != null)
+            connection.socket.setLinkProfile(linkProfile);
+    }
+
+    /**
+     * null if unknown
+     */
+    private SerialSocket.LinkProfile parseLinkProfile(String name) {
+        for (SerialSocket.LinkProfile profile : SerialSocket.LinkProfile.values()) {
+            if (profile.name().equalsIgnoreCase(name))
+                return profile;
+        }
+        sendTaskerDebugIntent(String.format("Unknown link profile [%s]", name));
+        return null;
+    }
+
+    /**
+     * from connect intent extras, defaults for missing or invalid extras
+     */
+    private Settings createSettings(Intent intent) {
+        Settings settings = new Settings();
+        settings.reconnectTimeout = intent.getIntExtra("reconnectTimeout", settings.reconnectTimeout);
+        settings.coalesceDelay = intent.getIntExtra("coalesceDelay", settings.coalesceDelay);
+        settings.writeQueueLimit = intent.getIntExtra("writeQueueLimit", settings.writeQueueLimit);
+        if (intent.hasExtra("linkProfile")) {
+            SerialSocket.LinkProfile linkProfile = parseLinkProfile(intent.getStringExtra("linkProfile"));
+            if (linkProfile != null)
+                settings.linkProfile = linkProfile;
+        }
+        if (intent.hasExtra("framing")) {
+            String name = intent.getStringExtra("framing");
+            byte[] delimiter = intent.hasExtra("delimiter") ? TextUtil.fromHexString(intent.getStringExtra("delimiter")) : null;
+            int lengthSize = intent.getIntExtra("lengthSize", settings.frameLengthSize);
+            try {
+                Framer.create(name, delimiter, lengthSize);
+                settings.framing = name;
+                settings.frameDelimiter = delimiter;
+                settings.frameLengthSize = lengthSize;
+            } catch (IllegalArgumentException e) {
+                sendTaskerDebugIntent(String.format("Invalid framing [%s]: [%s]", name, e.getMessage()));
+            }
+        }
+        settings.captureEnabled = intent.getBooleanExtra("capture", settings.captureEnabled);
+        settings.statsInterval = intent.getIntExtra("statsInterval", settings.statsInterval);
+        settings.taskerInterval = intent.getIntExtra("taskerInterval", settings.taskerInterval);
+        settings.taskerBatchSize = intent.getIntExtra("taskerBatchSize", settings.taskerBatchSize);
+        settings.taskerRate = intent.getIntExtra("taskerRate", settings.taskerRate);
+        settings.taskerUriData = intent.getBooleanExtra("taskerUriData", settings.taskerUriData);
+        settings.maxUiRate = intent.getIntExtra("maxUiRate", settings.maxUiRate);
+        return settings;
+    }
+
+    /**
+     * limit UI updates per second. with 60Hz display, 60 and above means every frame
+     */
+    private void setMaxUiRate(int maxUiRate) {
+        // 1 ms tolerance for frame time jitter
+        readFrameInterval = maxUiRate > 0 ? 1_000_000_000L / maxUiRate - 1_000_000 : 0;
+    }
+
+    /**
+     * replay received data from capture file instead of a device connection, replaces the primary connection.
+     * speed 1 = recorded timing, N = N times faster, <= 0 = as fast as possible
+     */
+    public void replay(File file, double speed) {
+        if(primary != null)
+            close(primary);
+        sendTaskerDebugIntent(String.format("Replaying [%s] with speed [%s]", file, speed));
+        Connection connection = new Connection(null, false, uiSettings.copy());
+        setPrimary(connection);
+        connection.replay(file, speed);
+    }
+
+    /**
+     * statistics of last second of primary connection, or null
+     */
+    public LinkStats.Snapshot getStats() {
+        Connection connection = primary;
+        return connection != null ? connection.statsSnapshot : null;
+    }
+
+    public boolean isCaptureEnabled() {
+        return getUiSettings().captureEnabled;
+    }
+
+    /**
+     * capture primary connection from now on, and next connections from UI
+     */
+    public void setCaptureEnabled(boolean enabled) {
+        uiSettings.captureEnabled = enabled;
+        Connection connection = primary;
+        if(connection == null)
+            return;
+        connection.settings.captureEnabled = enabled;
+        if(!connection.connected || connection.socket == null)
+            return;
+        if(enabled)
+            connection.startCapture(connection.socket);
+        else
+            connection.stopCapture();
+    }
+
+    /**
+     * current capture file of primary connection or last capture file, or null
+     */
+    public File getCaptureFile() {
+        Connection connection = primary;
+        return connection != null && connection.capture != null ? connection.capture.getFile() : lastCaptureFile;
+    }
+
+    public String getFraming() {
+        return getUiSettings().framing;
+    }
+
+    /**
+     * name from framing_values, with delimiter and lengthSize of primary connection.
+     * applies to primary connection and next connections from UI.
+     * returns false if name is unknown or delimiter/lengthSize is invalid
+     */
+    public boolean setFraming(String name) {
+        Connection connection = primary;
+        Settings settings = getUiSettings();
+        Framer framer;
+        try {
+            framer = Framer.create(name, settings.frameDelimiter, settings.frameLengthSize);
+        } catch (IllegalArgumentException e) {
+            sendTaskerDebugIntent(String.format("Invalid framing [%s]: [%s]", name, e.getMessage()));
+            return false;
+        }
+        uiSettings.framing = name;
+        uiSettings.frameDelimiter = settings.frameDelimiter;
+        uiSettings.frameLengthSize = settings.frameLengthSize;
+        if(connection != null) {
+            connection.settings.framing = name;
+            connection.framer = framer;
+        }
+        return true;
+    }
+
+    /**
+     * send data held back for coalescing now
+     */
+    public void flush() {
+        Connection connection = primary;
+        if(connection != null && connection.connected && connection.socket != null)
+            connection.socket.flush();
     }
 
     public void attach(SerialListener listener) {
@@ -179,10 +1155,47 @@ public class SerialService extends Service implements SerialListener {
         cancelNotification();
         // use synchronized() to prevent new items in queue2
         // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        // backlog of previous attach() is older than queue1, which is older than queue2
         synchronized (this) {
             this.listener = listener;
+            backlog.addAll(queue1);
+            backlog.addAll(queue2);
+            queue2.clear();
+            queue2Bytes = 0;
         }
-        for(QueueItem item : queue1) {
+        queue1.clear();
+        // deliver what fits into one frame now, the rest frame paced before new data
+        if(!deliverBacklog(System.nanoTime() + READ_FRAME_BUDGET) && readPosted.compareAndSet(false, true))
+            choreographer.postFrameCallback(readFrameCallback);
+    }
+
+    /**
+     * called in main thread. spilled data is read one page at a time, so only one page is in memory.
+     * returns false if deadline is reached before backlog is empty
+     */
+    private boolean deliverBacklog(long deadline) {
+        SerialListener listener;
+        while((listener = this.listener) != null && !backlog.isEmpty()) {
+            if(System.nanoTime() >= deadline)
+                return false;
+            QueueItem item = backlog.peek();
+            if(item.type == QueueType.Read && item.datas == null) {
+                ArrayDeque<byte[]> page = new ArrayDeque<>();
+                synchronized (this) {
+                    try {
+                        item.spillStart = spillFile.read(item.spillStart, item.spillEnd, REPLAY_PAGE_SIZE, page);
+                    } catch (IOException e) {
+                        Log.w(TAG, "replay failed", e);
+                        item.spillStart = item.spillEnd;
+                    }
+                }
+                if(item.spillStart >= item.spillEnd)
+                    backlog.poll();
+                if(!page.isEmpty())
+                    listener.onSerialRead(page);
+                continue;
+            }
+            backlog.poll();
             switch(item.type) {
                 case Connect:       listener.onSerialConnect      (); break;
                 case ConnectError:  listener.onSerialConnectError (item.e); break;
@@ -190,25 +1203,29 @@ public class SerialService extends Service implements SerialListener {
                 case IoError:       listener.onSerialIoError      (item.e); break;
             }
         }
-        for(QueueItem item : queue2) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
+        if(listener != null) {
+            synchronized (this) {
+                if(spillFile != null && queue2.isEmpty()) {
+                    if(spillDropped > 0)
+                        Log.w(TAG, "dropped " + spillDropped + " bytes while detached");
+                    spillFile.delete();
+                    spillFile = null;
+                    spillDropped = 0;
+                }
             }
         }
-        queue1.clear();
-        queue2.clear();
+        return true;
     }
 
     public void detach() {
-        if(connected)
+        if(!connections.isEmpty() || primary != null)
             createNotification();
         // items already in event queue (posted before detach() to mainLooper) will end up in queue1
         // items occurring later, will be moved directly to queue2
         // detach() and mainLooper.post run in the main thread, so all items are caught
         listener = null;
+        // data waiting for next display frame
+        deliverRead(Long.MAX_VALUE);
     }
 
     private void initNotification() {
@@ -245,7 +1262,7 @@ public class SerialService extends Service implements SerialListener {
                     .setSmallIcon(R.drawable.ic_notification)
                     .setColor(getResources().getColor(R.color.colorPrimary))
                     .setContentTitle(getResources().getString(R.string.app_name))
-                    .setContentText(socket != null ? "Connected to " + socket.getName() : "Background Service")
+                    .setContentText(getNotificationText())
                     .setContentIntent(restartPendingIntent)
                     .setOngoing(true)
                     .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
@@ -257,155 +1274,263 @@ public class SerialService extends Service implements SerialListener {
         }
     }
 
+    private String getNotificationText() {
+        if(connections.size() > 1)
+            return "Connected to " + connections.size() + " devices";
+        Connection connection = primary;
+        SerialSocket socket = connection != null ? connection.socket : null;
+        return socket != null ? "Connected to " + socket.getName() : "Background Service";
+    }
+
     private void cancelNotification() {
         stopForeground(true);
     }
 
     /**
-     * SerialListener
+     * UI read path of primary connection:
+     * reduce number of UI updates by merging data chunks.
+     * Data can arrive at hundred chunks per second, but the UI can only
+     * perform a dozen updates if receiveText already contains much text.
+     *
+     * While UI is attached, data is passed through readQueue, lock free for the main thread.
+     * Inform UI thread only if no delivery is pending (1), which takes all data queued so far (2).
+     * Delivery is paced by display frames and maxUiRate, so UI updates don't compete with input handling.
+     * The service monitor is only used while UI is detached, to not race with attach()
      */
-    public void onSerialConnect() {
-        sendTaskerDebugIntent("Connection successful");
-        sendTaskerEventIntent("connected");
-        retryConnectionStartTime = 0;
-        if(connected) {
+    private void onPrimaryRead(Connection connection, byte[] data) {
+        if (listener != null) {
+            if(!offerRead(connection, data))
+                return;
+            SerialSocket socket = connection.socket;
+            if(socket != null)
+                socket.setReadBacklog(readQueue.size());
+            if(readPosted.compareAndSet(false, true)) { // (1)
+                readPostTime = System.nanoTime();
+                choreographer.postFrameCallback(readFrameCallback); // thread safe, callback runs in main thread
+            }
+        } else {
             synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect));
-                        }
-                    });
+                if (connection != primary)
+                    return;
+                if (listener != null) { // attached in between
+                    offerRead(connection, data);
+                    if(readPosted.compareAndSet(false, true)) {
+                        readPostTime = System.nanoTime();
+                        choreographer.postFrameCallback(readFrameCallback);
+                    }
+                    return;
+                }
+                if(spillFile == null && queue2Bytes + data.length <= DETACHED_MEMORY_LIMIT) {
+                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
+                        queue2.add(new QueueItem(QueueType.Read));
+                    queue2.getLast().add(data);
+                    queue2Bytes += data.length;
                 } else {
-                    queue2.add(new QueueItem(QueueType.Connect));
+                    spill(data);
                 }
             }
         }
     }
 
-    public void onSerialConnectError(Exception e) {
-        sendTaskerDebugIntent(String.format("SerialConnectError : [%s])", e));
-        sendTaskerEventIntent("error");
-        boolean stopService = retryConnection();
-        if (!stopService && e.getMessage() != null && e.getMessage().toLowerCase().startsWith("gatt status")) {
-            return;
-        }
-
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, e));
-                    disconnect();
-                }
+    /**
+     * called with service monitor held. Once memory limit is reached, all further data goes to file until attach()
+     */
+    private void spill(byte[] data) {
+        try {
+            if(spillFile == null) {
+                spillFile = new SpillFile(new File(getCacheDir(), "detached.bin"));
+                Log.d(TAG, "spill detached data to file");
+            }
+            if(spillFile.position() + data.length > DETACHED_SPILL_LIMIT) {
+                spillDropped += data.length;
+                return;
             }
+            QueueItem last = queue2.peekLast();
+            if(last == null || last.type != QueueType.Read || last.datas != null) {
+                last = new QueueItem(QueueType.Read, spillFile.position());
+                queue2.add(last);
+            }
+            spillFile.append(data);
+            last.spillEnd = spillFile.position();
+        } catch (IOException e) {
+            spillDropped += data.length;
+            Log.w(TAG, "spill failed", e);
         }
     }
 
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
-
     /**
-     * reduce number of UI updates by merging data chunks.
-     * Data can arrive at hundred chunks per second, but the UI can only
-     * perform a dozen updates if receiveText already contains much text.
-     *
-     * On new data inform UI thread once (1).
-     * While not consumed (2), add more data (3).
+     * called in lane thread. The lock is uncontended, except while primary changes and the lane of the
+     * previous primary is still in here. Once readQueue was full, data goes to readOverflow until consumed, to keep order.
+     * returns false if connection is no longer primary
      */
-    public void onSerialRead(byte[] data) {
-        if(connected) {
-            Intent intent = new Intent("TASKER_BLE");
-            intent.setData(Uri.parse("tasker:" + new String(data)));
-            sendBroadcast(intent);
-            synchronized (this) {
-                if (listener != null) {
-                    boolean first;
-                    synchronized (lastRead) {
-                        first = lastRead.datas.isEmpty(); // (1)
-                        lastRead.add(data); // (3)
-                    }
-                    if(first) {
-                        mainLooper.post(() -> {
-                            ArrayDeque<byte[]> datas;
-                            synchronized (lastRead) {
-                                datas = lastRead.datas;
-                                lastRead.init(); // (2)
-                            }
-                            if (listener != null) {
-                                listener.onSerialRead(datas);
-                            } else {
-                                queue1.add(new QueueItem(QueueType.Read, datas));
-                            }
-                        });
-                    }
-                } else {
-                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
-                        queue2.add(new QueueItem(QueueType.Read));
-                    queue2.getLast().add(data);
-                }
+    private boolean offerRead(Connection connection, byte[] data) {
+        synchronized (readOverflow) {
+            if(connection != primary)
+                return false;
+            if(readOverflowing || !readQueue.offer(data)) {
+                readOverflowing = true;
+                readOverflow.add(data);
             }
+            return true;
         }
     }
 
-    public void onSerialIoError(Exception e) {
-        sendTaskerDebugIntent(String.format("SerialIoError : [%s])", e));
-        sendTaskerEventIntent("error");
-        boolean stopService = retryConnection();
-        if (!stopService && e.getMessage() != null && e.getMessage().toLowerCase().startsWith("gatt status")) {
+    /**
+     * called in main thread.
+     * the ArrayDeque is reused after delivery to UI, so there are no allocations in steady state.
+     * it is only kept if queued for a detached UI.
+     * data is delivered in batches until deadline (System.nanoTime), remaining data in next frame
+     */
+    private void deliverRead(long deadline) {
+        readPosted.set(false); // (2) data offered after this is delivered with next frame
+        if(!deliverBacklog(deadline)) { // older than readQueue
+            if(readPosted.compareAndSet(false, true))
+                choreographer.postFrameCallback(readFrameCallback);
             return;
         }
-
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, e));
-                    disconnect();
+        long postTime = readPostTime;
+        do {
+            ArrayDeque<byte[]> datas = readSpare != null ? readSpare : new ArrayDeque<>();
+            readSpare = null;
+            byte[] data;
+            while(datas.size() < READ_BATCH_SIZE && (data = readQueue.poll()) != null)
+                datas.add(data);
+            if(readOverflowing && datas.size() < READ_BATCH_SIZE) {
+                synchronized (readOverflow) {
+                    while((data = readQueue.poll()) != null)
+                        datas.add(data);
+                    datas.addAll(readOverflow);
+                    readOverflow.clear();
+                    readOverflowing = false;
+                }
+            }
+            if(datas.isEmpty()) {
+                readSpare = datas;
+                return;
+            }
+            Connection connection = primary;
+            SerialSocket socket = connection != null ? connection.socket : null;
+            if(socket != null)
+                socket.setReadBacklog(readQueue.size());
+            if (listener != null) {
+                listener.onSerialRead(datas);
+                datas.clear();
+                readSpare = datas;
+                LinkStats stats = connection != null ? connection.stats : null;
+                if(stats != null && postTime != 0) {
+                    stats.onDispatch(System.nanoTime() - postTime);
+                    postTime = 0;
                 }
+            } else {
+                queue1.add(new QueueItem(QueueType.Read, datas));
             }
+        } while(System.nanoTime() < deadline);
+        // frame budget exceeded
+        if(readPosted.compareAndSet(false, true))
+            choreographer.postFrameCallback(readFrameCallback);
+    }
+
+    /**
+     * called in main thread at most once per display frame and not more often than maxUiRate
+     */
+    private void onReadFrame(long frameTimeNanos) {
+        if(frameTimeNanos - readFrameTime < readFrameInterval) {
+            choreographer.postFrameCallback(readFrameCallback);
+            return;
         }
+        readFrameTime = frameTimeNanos;
+        deliverRead(System.nanoTime() + READ_FRAME_BUDGET);
     }
 
-    // Retry connection for a maximum of 5 minutes, with increasing interval between retries
-    private boolean retryConnection() {
-        if (retryConnectionStartTime == 0) {
-            retryConnectionStartTime = Calendar.getInstance().getTimeInMillis();
-        } else if ((reconnectTimeout != 0 && Calendar.getInstance().getTimeInMillis() - retryConnectionStartTime > reconnectTimeout) || macAddress == null) {
-            return true;
+    /**
+     * from request extras prefix, regex or frameId (hex) with frameIdOffset. null if missing or invalid
+     */
+    private RequestTracker.Matcher createMatcher(Intent intent) {
+        try {
+            if (intent.hasExtra("prefix"))
+                return RequestTracker.Matcher.prefix(intent.getStringExtra("prefix"));
+            if (intent.hasExtra("regex"))
+                return RequestTracker.Matcher.regex(intent.getStringExtra("regex"));
+            if (intent.hasExtra("frameId"))
+                return RequestTracker.Matcher.frameId(TextUtil.fromHexString(intent.getStringExtra("frameId")),
+                        intent.getIntExtra("frameIdOffset", 0));
+        } catch (RuntimeException e) {
+            sendTaskerDebugIntent(String.format("Invalid response matcher, unable to send request: [%s]", e));
+            return null;
         }
-        if (this.socket != null) {
-            socket.disconnect();
+        sendTaskerDebugIntent("No prefix, regex or frameId extra, unable to send request");
+        return null;
+    }
+
+    private void send(Connection connection, PendingSend send) {
+        if (send.matcher == null)
+            sendString(connection, send.text, send.id, send.flush);
+        else
+            sendRequest(connection, send);
+    }
+
+    // Send request to connected device and report matched response or failure as event
+    private void sendRequest(Connection connection, PendingSend send) {
+        RequestTracker.Listener listener = new RequestTracker.Listener() {
+            @Override
+            public void onResponse(byte[] response, long latencyNanos) {
+                Intent intent = createTaskerEventIntent(connection, "response");
+                intent.putExtra("id", send.id);
+                intent.putExtra("text", new String(response));
+                intent.putExtra("data", response);
+                intent.putExtra("latency", latencyNanos / 1000000.0); // ms
+                sendBroadcast(intent);
+            }
+
+            @Override
+            public void onError(IOException e) {
+                sendTaskerDebugIntent(String.format("Request [%s] failed: [%s]", send.text, e.getMessage()));
+                Intent intent = createTaskerEventIntent(connection, "requestFailed");
+                intent.putExtra("id", send.id);
+                intent.putExtra("error", e.getMessage());
+                sendBroadcast(intent);
+            }
+        };
+        try {
+            request(connection, send.text.getBytes(), send.matcher, send.timeout, listener);
+        } catch (IOException e) {
+            listener.onError(e);
+            return;
         }
-        sendTaskerDebugIntent("Trying to reconnect");
-        connectToMac(macAddress);
-        return false;
+        SerialSocket socket = connection.socket;
+        if (send.flush && socket != null)
+            socket.flush();
     }
 
-    // Send string to connected device
-    private void sendString(String text) {
+    // Send string to connected device. if id is set, send event when sent
+    private void sendString(Connection connection, String text, String id, boolean flush) {
         try {
-            write(text.getBytes());
+            SerialSocket socket = getSocket(connection);
+            if (id == null) {
+                socket.write(text.getBytes());
+            } else {
+                socket.write(text.getBytes(), 0, new SerialSocket.WriteCallback() {
+                    @Override
+                    public void onWriteComplete(long messageId, long latencyNanos) {
+                        Intent intent = createTaskerEventIntent(connection, "sent");
+                        intent.putExtra("id", id);
+                        intent.putExtra("latency", latencyNanos / 1000000.0); // ms
+                        sendBroadcast(intent);
+                    }
+
+                    @Override
+                    public void onWriteError(long messageId, Exception e) {
+                        sendTaskerDebugIntent(String.format("Failed to send string with id [%s]: [%s]", id, e));
+                    }
+                });
+            }
+            if (flush)
+                socket.flush();
+        } catch (SerialSocket.WriteQueueFullException e) {
+            sendTaskerDebugIntent(String.format("Write queue full, unable to send string [%s]", text));
         } catch (IOException e) {
-            sendTaskerDebugIntent(String.format("Failed to send string [%s]", text));
-            onSerialIoError(e);
+            // connection errors are reported by socket, and must not stop reconnecting
+            sendTaskerDebugIntent(String.format("Failed to send string [%s]: [%s]", text, e));
         }
     }
 
@@ -415,9 +1540,32 @@ public class SerialService extends Service implements SerialListener {
         sendBroadcast(intent);
     }
 
-    private void sendTaskerEventIntent(String text) {
+    private void sendTaskerEventIntent(Connection connection, String text) {
+        sendBroadcast(createTaskerEventIntent(connection, text));
+    }
+
+    /**
+     * with sendExpired event, if send has an id. address is null for primary connection
+     */
+    private void dropSend(String address, PendingSend send, String message) {
+        sendTaskerDebugIntent(message);
+        if (send.id != null) {
+            Intent intent = createTaskerEventIntent(null, "sendExpired");
+            if (address != null)
+                intent.putExtra("macAddress", address);
+            intent.putExtra("id", send.id);
+            sendBroadcast(intent);
+        }
+    }
+
+    /**
+     * tagged with device address
+     */
+    private Intent createTaskerEventIntent(Connection connection, String text) {
         Intent intent = new Intent("TASKER_BLE_EVENT");
         intent.setData(Uri.parse("tasker: " + text));
-        sendBroadcast(intent);
+        if (connection != null && connection.address != null)
+            intent.putExtra("macAddress", connection.address);
+        return intent;
     }
 }
@@ -14,20 +14,27 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * wrap BLE communication into socket like class
  *   - connect, disconnect and write as methods,
  *   - read + status is returned by SerialListener
+ * gatt callbacks, write submission and delayed actions run in own bluetooth I/O thread
+ * (gatt callbacks only from API 26, before they arrive in binder threads)
+ * gatt operations other than data writes are serialized by GattQueue
  */
 @SuppressLint("MissingPermission") // various BluetoothGatt, BluetoothDevice methods
 class SerialSocket extends BluetoothGattCallback {
@@ -36,13 +43,83 @@ class SerialSocket extends BluetoothGattCallback {
      * delegate device specific behaviour to inner class
      */
     private static class DeviceDelegate {
-        boolean connectCharacteristics(BluetoothGattService s) { return true; }
+        boolean connectCharacteristics(BluetoothGattService s) { return true; } // false if connect error was reported
         // following methods only overwritten for Telit devices
         void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
-        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {/*nop*/ }
+        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c, byte[] value) {/*nop*/ }
         void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
         boolean canWrite() { return true; }
+        boolean canPipelineWrites() { return true; }
+        void onReadBacklog(int chunks) { /*nop*/ }
         void disconnect() {/*nop*/ }
+        boolean needsFullSetup() { return false; } // else characteristics are taken from GattCache
+    }
+
+    /**
+     * write rejected because write queue limit reached. connection is still usable
+     */
+    static class WriteQueueFullException extends IOException {
+        WriteQueueFullException() { super("write queue full"); }
+    }
+
+    /**
+     * completion of write(data, timeout, callback), called in bluetooth callback thread.
+     * latency is measured from write() until last chunk of data is confirmed in onCharacteristicWrite()
+     */
+    interface WriteCallback {
+        void onWriteComplete(long id, long latencyNanos);
+        void onWriteError(long id, Exception e);
+    }
+
+    private static class PendingWrite {
+        final long id, end, startTime;
+        final WriteCallback callback;
+
+        PendingWrite(long id, long end, long startTime, WriteCallback callback) {
+            this.id = id; this.end = end; this.startTime = startTime; this.callback = callback;
+        }
+    }
+
+    /**
+     * connection priority and PHY requested after MTU negotiation
+     */
+    enum LinkProfile { Throughput, Balanced, LowPower }
+
+    /**
+     * negotiated link parameters. Android has no public API for the actual connection interval,
+     * so the interval range documented for the requested connection priority is reported
+     */
+    static class LinkInfo {
+        final LinkProfile profile;
+        final int mtu;
+        final int txPhy, rxPhy;
+        final String interval;
+
+        LinkInfo(LinkProfile profile, int mtu, int txPhy, int rxPhy) {
+            this.profile = profile;
+            this.mtu = mtu;
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+            switch (profile) {
+                case Throughput: interval = "11.25-15ms"; break;
+                case LowPower:   interval = "100-125ms"; break;
+                default:         interval = "30-50ms"; break;
+            }
+        }
+
+        static String phyName(int phy) {
+            switch (phy) {
+                case BluetoothDevice.PHY_LE_1M:    return "1M";
+                case BluetoothDevice.PHY_LE_2M:    return "2M";
+                case BluetoothDevice.PHY_LE_CODED: return "coded";
+                default: return "?";
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "mtu " + mtu + ", phy " + phyName(txPhy) + "/" + phyName(rxPhy) + ", interval " + interval + " (" + profile + ")";
+        }
     }
 
     private static final UUID BLUETOOTH_LE_CCCD           = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
@@ -65,31 +142,70 @@ class SerialSocket extends BluetoothGattCallback {
 
     private static final int MAX_MTU = 512; // BLE standard does not limit, some BLE 4.2 devices support 251, various source say that Android has max 512
     private static final int DEFAULT_MTU = 23;
+    private static final int MAX_WRITES_IN_FLIGHT = 8; // for WRITE_NO_RESPONSE characteristics
+    private static final long SETUP_TIMEOUT = 10000; // ms, for descriptor writes and MTU request while connecting
+    private static final long CREDITS_TIMEOUT = 2000; // ms
     private static final String TAG = "SerialSocket";
 
-    private final ArrayList<byte[]> writeBuffer;
+    // start status of gatt operations, same values as BluetoothStatusCodes which is API 31+
+    static final int STATUS_SUCCESS = 0;
+    static final int STATUS_FAILED = Integer.MAX_VALUE; // BluetoothStatusCodes.ERROR_UNKNOWN
+
+    private final WriteBuffer writeBuffer;
+    private final Runnable flushRunnable, writeNextRunnable;
+    private HandlerThread ioThread;
+    private Handler handler; // bluetooth I/O thread, created in connect()
+    private GattQueue gattQueue; // created in connect()
     private final IntentFilter pairingIntentFilter;
     private final BroadcastReceiver pairingBroadcastReceiver;
     private final BroadcastReceiver disconnectBroadcastReceiver;
 
     private final Context context;
+    private final GattCache gattCache;
+    private final String address;
+    private GattCache.Entry cachedLayout; // used for current connect, null if searched
+    private boolean readIndicate;
     private SerialListener listener;
     private DeviceDelegate delegate;
     private BluetoothDevice device;
     private BluetoothGatt gatt;
     private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
 
-    private boolean writePending;
+    private int writesInFlight;
+    private final int[] writeInFlightLength = new int[MAX_WRITES_IN_FLIGHT]; // ring, oldest at writeInFlightHead
+    private final long[] writeInFlightTime = new long[MAX_WRITES_IN_FLIGHT];  // System.nanoTime() when started
+    private int writeInFlightHead;
+    // byte positions in write stream, to find completed PendingWrites
+    private long writeId, writeEnqueued, writeConfirmed;
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private int maxWritesInFlight = 1;
+    private byte[] writeRetry; // chunk rejected with busy status, written before next chunk from writeBuffer
     private boolean canceled;
     private boolean connected;
     private int payloadSize = DEFAULT_MTU-3;
+    private int mtu = DEFAULT_MTU;
+    private boolean mtuConfirmed; // MTU exchange succeeded, or skipped because cached
+    private int txPhy = BluetoothDevice.PHY_LE_1M, rxPhy = BluetoothDevice.PHY_LE_1M;
+    private LinkProfile linkProfile = LinkProfile.Balanced;
+    private int coalesceDelay; // ms, 0 = disabled
+    private volatile CaptureFile capture; // null = disabled
+    private volatile LinkStats stats;     // null = disabled
+    private byte[] coalesceBuffer;
+    private int coalesceLength;
+    private int writeQueueLimit, writeHighWatermark, writeLowWatermark; // bytes, 0 = unbounded
+    private boolean writeBlocked;
+    private int writeQueueWaiters; // threads in awaitWriteQueue()
 
     SerialSocket(Context context, BluetoothDevice device) {
         if(context instanceof Activity)
             throw new InvalidParameterException("expected non UI context");
         this.context = context;
         this.device = device;
-        writeBuffer = new ArrayList<>();
+        gattCache = new GattCache(context);
+        address = device.getAddress();
+        writeBuffer = new WriteBuffer();
+        flushRunnable = this::flush;
+        writeNextRunnable = this::writeNext;
         pairingIntentFilter = new IntentFilter();
         pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
@@ -113,15 +229,107 @@ class SerialSocket extends BluetoothGattCallback {
         return device.getName() != null ? device.getName() : device.getAddress();
     }
 
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * number of bytes queued, but not yet passed to gatt.writeCharacteristic
+     */
+    int getWriteQueueSize() {
+        synchronized (writeBuffer) {
+            return queuedBytes();
+        }
+    }
+
+    private int queuedBytes() {
+        return writeBuffer.size() + coalesceLength;
+    }
+
+    /**
+     * limit queued bytes. write() fails or blocks if limit reached,
+     * listener.onSerialWritable(false) is called above high, (true) again below low watermark.
+     * A single write larger than limit is accepted if queue is empty. 0 = unbounded
+     */
+    void setWriteQueueLimit(int limit, int highWatermark, int lowWatermark) {
+        if(limit < 0 || highWatermark > limit || lowWatermark > highWatermark)
+            throw new IllegalArgumentException("invalid write queue limit");
+        synchronized (writeBuffer) {
+            writeQueueLimit = limit;
+            writeHighWatermark = highWatermark;
+            writeLowWatermark = lowWatermark;
+        }
+    }
+
+    LinkInfo getLinkInfo() {
+        return new LinkInfo(linkProfile, mtu, txPhy, rxPhy);
+    }
+
+    /**
+     * applied after MTU negotiation, or immediately if already connected
+     */
+    void setLinkProfile(LinkProfile linkProfile) {
+        this.linkProfile = linkProfile;
+        if(connected)
+            handler.post(this::applyLinkProfile);
+    }
+
+    /**
+     * number of received chunks not yet consumed by the UI, used for flow control
+     */
+    void setReadBacklog(int chunks) {
+        DeviceDelegate delegate = this.delegate;
+        if(delegate != null)
+            delegate.onReadBacklog(chunks);
+    }
+
+    /**
+     * Nagle style merging of small writes into payload sized packets.
+     * Small writes are held back while previous writes are pending, until the packet is full,
+     * all pending writes are finished, delay expired or flush() is called. 0 = disabled
+     */
+    void setCoalesceDelay(int coalesceDelay) {
+        this.coalesceDelay = coalesceDelay;
+    }
+
+    /**
+     * record sent and received data and connection events. set before connect(), file is not closed here
+     */
+    void setCapture(CaptureFile capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * count confirmed writes and round trip time from writeCharacteristic() to onCharacteristicWrite()
+     */
+    void setStats(LinkStats stats) {
+        this.stats = stats;
+    }
+
     void disconnect() {
         Log.d(TAG, "disconnect");
+        CaptureFile capture = this.capture;
+        if(capture != null && !canceled)
+            capture.event("disconnect");
         listener = null; // ignore remaining data and errors
         device = null;
         canceled = true;
         synchronized (writeBuffer) {
-            writePending = false;
+            writesInFlight = 0;
+            writeInFlightHead = 0;
+            writeRetry = null;
             writeBuffer.clear();
+            coalesceLength = 0;
+            writeBlocked = false;
+            writeBuffer.notifyAll(); // wake up blocked writers
+        }
+        if(gattQueue != null)
+            gattQueue.clear();
+        if(ioThread != null) {
+            ioThread.quitSafely();
+            ioThread = null;
         }
+        failPendingWrites(new IOException("disconnected"));
         readCharacteristic = null;
         writeCharacteristic = null;
         if(delegate != null)
@@ -157,15 +365,39 @@ class SerialSocket extends BluetoothGattCallback {
         ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
         Log.d(TAG, "connect "+device);
         context.registerReceiver(pairingBroadcastReceiver, pairingIntentFilter);
-        if (Build.VERSION.SDK_INT < 23) {
-            Log.d(TAG, "connectGatt");
-            gatt = device.connectGatt(context, false, this);
-        } else {
-            Log.d(TAG, "connectGatt,LE");
-            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+        ioThread = new HandlerThread(TAG);
+        ioThread.start();
+        handler = new Handler(ioThread.getLooper());
+        gattQueue = new GattQueue(handler, new GattQueue.DataListener() {
+            @Override
+            public void onDataResume() {
+                writeNext();
+            }
+
+            @Override
+            public void onDataTimeout() {
+                onSerialIoError(new IOException("write timeout"));
+            }
+        });
+        try {
+            if (Build.VERSION.SDK_INT < 23) {
+                Log.d(TAG, "connectGatt");
+                gatt = device.connectGatt(context, false, this);
+            } else if (Build.VERSION.SDK_INT < 26) {
+                Log.d(TAG, "connectGatt,LE");
+                gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+            } else {
+                Log.d(TAG, "connectGatt,LE,handler");
+                gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, handler);
+            }
+        } catch (RuntimeException e) {
+            disconnect(); // stop ioThread and unregister receivers
+            throw e;
         }
-        if (gatt == null)
+        if (gatt == null) {
+            disconnect();
             throw new IOException("connectGatt failed");
+        }
         // continues asynchronously in onPairingBroadcastReceive() and onConnectionStateChange()
     }
 
@@ -220,21 +452,40 @@ class SerialSocket extends BluetoothGattCallback {
     }
 
     private void connectCharacteristics1(BluetoothGatt gatt) {
-        boolean sync = true;
-        writePending = false;
-        for (BluetoothGattService gattService : gatt.getServices()) {
-            if (gattService.getUuid().equals(BLUETOOTH_LE_CC254X_SERVICE))
-                delegate = new Cc245XDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_MICROCHIP_SERVICE))
-                delegate = new MicrochipDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_NRF_SERVICE))
-                delegate = new NrfDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_TIO_SERVICE))
-                delegate = new TelitDelegate();
-
-            if(delegate != null) {
-                sync = delegate.connectCharacteristics(gattService);
-                break;
+        boolean ok = true;
+        synchronized (writeBuffer) {
+            writesInFlight = 0;
+            writeInFlightHead = 0;
+            maxWritesInFlight = 1;
+        }
+        // fast path with layout from previous connect, falls back to search if device changed
+        GattCache.Entry cached = gattCache.get(address);
+        if (cached != null) {
+            BluetoothGattService gattService = gatt.getService(cached.service);
+            delegate = gattService != null ? createDelegate(cached.service) : null;
+            if (delegate != null && delegate.needsFullSetup()) {
+                ok = delegate.connectCharacteristics(gattService);
+            } else if (delegate != null) {
+                Log.d(TAG, "cached layout " + cached);
+                readCharacteristic = gattService.getCharacteristic(cached.read);
+                writeCharacteristic = gattService.getCharacteristic(cached.write);
+            }
+            if (delegate != null && readCharacteristic != null && writeCharacteristic != null) {
+                cachedLayout = cached;
+            } else {
+                Log.d(TAG, "cached layout invalid");
+                gattCache.remove(address);
+                delegate = null;
+                readCharacteristic = writeCharacteristic = null;
+            }
+        }
+        if (delegate == null) {
+            for (BluetoothGattService gattService : gatt.getServices()) {
+                delegate = createDelegate(gattService.getUuid());
+                if (delegate != null) {
+                    ok = delegate.connectCharacteristics(gattService);
+                    break;
+                }
             }
         }
         if(canceled)
@@ -248,144 +499,367 @@ class SerialSocket extends BluetoothGattCallback {
             onSerialConnectError(new IOException("no serial profile found"));
             return;
         }
-        if(sync)
+        if(ok)
             connectCharacteristics2(gatt);
     }
 
+    private DeviceDelegate createDelegate(UUID service) {
+        if (service.equals(BLUETOOTH_LE_CC254X_SERVICE))
+            return new Cc245XDelegate();
+        if (service.equals(BLUETOOTH_LE_MICROCHIP_SERVICE))
+            return new MicrochipDelegate();
+        if (service.equals(BLUETOOTH_LE_NRF_SERVICE))
+            return new NrfDelegate();
+        if (service.equals(BLUETOOTH_LE_TIO_SERVICE))
+            return new TelitDelegate();
+        return null;
+    }
+
+    /**
+     * queue MTU request. the connect sequence continues in connectCharacteristics3 without waiting,
+     * as following setup operations are queued behind it
+     */
     private void connectCharacteristics2(BluetoothGatt gatt) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            Log.d(TAG, "request max MTU");
-            if (!gatt.requestMtu(MAX_MTU))
-                onSerialConnectError(new IOException("request MTU failed"));
+        if (cachedLayout != null && cachedLayout.mtu == DEFAULT_MTU) {
+            Log.d(TAG, "skip MTU request, device did not support larger MTU");
+            mtuConfirmed = true;
+            applyLinkProfile();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            gattQueue.submit(new GattQueue.Operation("request MTU", GattQueue.Priority.Setup, GattQueue.MTU, SETUP_TIMEOUT) {
+                @Override
+                int start() {
+                    Log.d(TAG, "request max MTU");
+                    return gatt.requestMtu(MAX_MTU) ? STATUS_SUCCESS : STATUS_FAILED;
+                }
+
+                @Override
+                void onComplete(int status) {
+                    applyLinkProfile();
+                }
+
+                @Override
+                void onError(IOException e) {
+                    onSerialConnectError(e);
+                }
+            });
             // continues asynchronously in onMtuChanged
-        } else {
-            connectCharacteristics3(gatt);
         }
+        connectCharacteristics3(gatt);
     }
 
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         Log.d(TAG,"mtu size "+mtu+", status="+status);
         if(status ==  BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+            mtuConfirmed = true;
             payloadSize = mtu - 3;
             Log.d(TAG, "payload size "+payloadSize);
         }
-        connectCharacteristics3(gatt);
+        if(canceled)
+            return;
+        gattQueue.complete(GattQueue.MTU, status);
+    }
+
+    /**
+     * connection priority and PHY requests have no GATT response,
+     * so the connect sequence continues without waiting. data length extension is done by the bluetooth stack
+     */
+    private void applyLinkProfile() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || gatt == null)
+            return;
+        int priority;
+        switch (linkProfile) {
+            case Throughput: priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH; break;
+            case LowPower:   priority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER; break;
+            default:         priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED; break;
+        }
+        Log.d(TAG, "request connection priority "+linkProfile);
+        if (!gatt.requestConnectionPriority(priority))
+            Log.w(TAG, "request connection priority failed");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phyMask;
+            switch (linkProfile) {
+                case Throughput: phyMask = BluetoothDevice.PHY_LE_2M_MASK; break;
+                case LowPower:   phyMask = BluetoothDevice.PHY_LE_1M_MASK; break;
+                default:         phyMask = BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK; break;
+            }
+            Log.d(TAG, "set preferred phy "+phyMask);
+            gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            gatt.readPhy();
+            // continues asynchronously in onPhyUpdate() and onPhyRead()
+        }
+        onSerialLinkUpdate();
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        onPhyRead(gatt, txPhy, rxPhy, status);
+    }
+
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        Log.d(TAG, "phy "+txPhy+"/"+rxPhy+", status="+status);
+        if(status != BluetoothGatt.GATT_SUCCESS || canceled || (txPhy == this.txPhy && rxPhy == this.rxPhy))
+            return;
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+        onSerialLinkUpdate();
     }
 
     private void connectCharacteristics3(BluetoothGatt gatt) {
         int writeProperties = writeCharacteristic.getProperties();
         if((writeProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE +     // Microbit,HM10-clone have WRITE
                 BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) ==0) { // HM10,TI uart,Telit have only WRITE_NO_RESPONSE
+            invalidateCachedLayout();
             onSerialConnectError(new IOException("write characteristic not writable"));
             return;
         }
+        // without response, the next write can be started as soon as the previous one is queued in the bluetooth stack
+        if((writeProperties & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0 && delegate.canPipelineWrites()) {
+            writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            synchronized (writeBuffer) {
+                maxWritesInFlight = MAX_WRITES_IN_FLIGHT;
+            }
+            Log.d(TAG, "pipelined write without response");
+        }
         if(!gatt.setCharacteristicNotification(readCharacteristic,true)) {
+            invalidateCachedLayout();
             onSerialConnectError(new IOException("no notification for read characteristic"));
             return;
         }
         BluetoothGattDescriptor readDescriptor = readCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
         if(readDescriptor == null) {
+            invalidateCachedLayout();
             onSerialConnectError(new IOException("no CCCD descriptor for read characteristic"));
             return;
         }
         int readProperties = readCharacteristic.getProperties();
-        if((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+        if(cachedLayout != null) {
+            readIndicate = cachedLayout.indicate;
+            Log.d(TAG, "enable read " + (readIndicate ? "indication" : "notification"));
+            readDescriptor.setValue(readIndicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        } else if((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            readIndicate = true;
             Log.d(TAG, "enable read indication");
             readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
         }else if((readProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
             Log.d(TAG, "enable read notification");
             readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
         } else {
+            invalidateCachedLayout();
             onSerialConnectError(new IOException("no indication/notification for read characteristic ("+readProperties+")"));
             return;
         }
-        Log.d(TAG,"writing read characteristic descriptor");
-        if(!gatt.writeDescriptor(readDescriptor)) {
-            onSerialConnectError(new IOException("read characteristic CCCD descriptor not writable"));
-        }
-        // continues asynchronously in onDescriptorWrite()
-    }
+        gattQueue.submit(new GattQueue.Operation("write read characteristic descriptor", GattQueue.Priority.Setup, readDescriptor, SETUP_TIMEOUT) {
+            @Override
+            @SuppressWarnings("deprecation")
+            int start() {
+                Log.d(TAG,"writing read characteristic descriptor");
+                return gatt.writeDescriptor(readDescriptor) ? STATUS_SUCCESS : STATUS_FAILED;
+            }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        delegate.onDescriptorWrite(gatt, descriptor, status);
-        if(canceled)
-            return;
-        if(descriptor.getCharacteristic() == readCharacteristic) {
-            Log.d(TAG,"writing read characteristic descriptor finished, status="+status);
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                onSerialConnectError(new IOException("write descriptor failed"));
-            } else {
+            @Override
+            void onComplete(int status) {
+                Log.d(TAG,"writing read characteristic descriptor finished, status="+status);
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    invalidateCachedLayout();
+                    onSerialConnectError(new IOException("write descriptor failed"));
+                    return;
+                }
                 // onCharacteristicChanged with incoming data can happen after writeDescriptor(ENABLE_INDICATION/NOTIFICATION)
                 // before confirmed by this method, so receive data can be shown before device is shown as 'Connected'.
+                gattCache.put(address, new GattCache.Entry(readCharacteristic.getService().getUuid(),
+                        readCharacteristic.getUuid(), writeCharacteristic.getUuid(), readIndicate, mtuConfirmed ? mtu : 0));
                 onSerialConnect();
                 connected = true;
                 Log.d(TAG, "connected");
             }
-        }
+
+            @Override
+            void onError(IOException e) {
+                onSerialConnectError(e);
+            }
+        });
+        // continues asynchronously in onDescriptorWrite()
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if(canceled)
+            return;
+        delegate.onDescriptorWrite(gatt, descriptor, status);
+        gattQueue.complete(descriptor, status);
     }
 
     /*
      * read
      */
     @Override
+    @SuppressWarnings("deprecation")
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        // only called before API 33. getValue() returns the array received from bluetooth stack, not a copy
+        onCharacteristicChanged(gatt, characteristic, characteristic.getValue());
+    }
+
+    /**
+     * API 33 passes value per notification instead of shared characteristic value.
+     * value is passed on without copy, no per notification allocation in this path
+     */
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
         if(canceled)
             return;
-        delegate.onCharacteristicChanged(gatt, characteristic);
+        delegate.onCharacteristicChanged(gatt, characteristic, value);
         if(canceled)
             return;
-        if(characteristic == readCharacteristic) { // NOPMD - test object identity
-            byte[] data = readCharacteristic.getValue();
-            onSerialRead(data);
-            Log.d(TAG,"read, len="+data.length);
-        }
+        if(characteristic == readCharacteristic) // NOPMD - test object identity
+            onSerialRead(value);
     }
 
     /*
      * write
      */
     void write(byte[] data) throws IOException {
+        write(data, 0, null);
+    }
+
+    /**
+     * wait up to timeout ms until at most size bytes are queued, independent of write queue limit.
+     * returns false on timeout
+     */
+    boolean awaitWriteQueue(int size, long timeout) throws IOException {
+        synchronized (writeBuffer) {
+            long deadline = SystemClock.elapsedRealtime() + timeout;
+            writeQueueWaiters++;
+            try {
+                while(queuedBytes() > size) {
+                    if(canceled)
+                        throw new IOException("not connected");
+                    long remaining = deadline - SystemClock.elapsedRealtime();
+                    if(remaining <= 0)
+                        return false;
+                    try {
+                        writeBuffer.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("wait interrupted");
+                    }
+                }
+                return true;
+            } finally {
+                writeQueueWaiters--;
+            }
+        }
+    }
+
+    void write(byte[] data, long timeout) throws IOException {
+        write(data, timeout, null);
+    }
+
+    /**
+     * if write queue limit is reached, wait up to timeout ms for free space, then throw WriteQueueFullException.
+     * returns message id passed to callback
+     */
+    long write(byte[] data, long timeout, WriteCallback callback) throws IOException {
+        return write(data, 0, data.length, timeout, callback);
+    }
+
+    /**
+     * data is copied, so the caller can reuse the array
+     */
+    long write(byte[] data, int offset, int length, long timeout, WriteCallback callback) throws IOException {
         if(canceled || !connected || writeCharacteristic == null)
             throw new IOException("not connected");
-        byte[] data0;
+        long id;
+        boolean blocked = false, start = true;
         synchronized (writeBuffer) {
-            if(data.length <= payloadSize) {
-                data0 = data;
-            } else {
-                data0 = Arrays.copyOfRange(data, 0, payloadSize);
-            }
-            if(!writePending && writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-            } else {
-                writeBuffer.add(data0);
-                Log.d(TAG,"write queued, len="+data0.length);
-                data0 = null;
-            }
-            if(data.length > payloadSize) {
-                for(int i=1; i<(data.length+payloadSize-1)/payloadSize; i++) {
-                    int from = i*payloadSize;
-                    int to = Math.min(from+payloadSize, data.length);
-                    writeBuffer.add(Arrays.copyOfRange(data, from, to));
-                    Log.d(TAG,"write queued, len="+(to-from));
+            long deadline = SystemClock.elapsedRealtime() + timeout;
+            while(writeQueueLimit > 0 && queuedBytes() > 0 && queuedBytes() + length > writeQueueLimit) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if(remaining <= 0)
+                    throw new WriteQueueFullException();
+                try {
+                    writeBuffer.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("write interrupted");
                 }
+                if(canceled)
+                    throw new IOException("not connected");
             }
-        }
-        if(data0 != null) {
-            writeCharacteristic.setValue(data0);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
+            if(writeQueueLimit > 0 && !writeBlocked && queuedBytes() + length >= writeHighWatermark) {
+                writeBlocked = blocked = true;
+                Log.d(TAG,"write queue above high watermark");
+            }
+            id = ++writeId;
+            writeEnqueued += length;
+            if(callback != null) {
+                if(writeEnqueued == writeConfirmed) // empty write without pending data
+                    callback.onWriteComplete(id, 0);
+                else
+                    pendingWrites.add(new PendingWrite(id, writeEnqueued, System.nanoTime(), callback));
+            }
+            boolean idle = writesInFlight == 0 && writeBuffer.isEmpty() && coalesceLength == 0;
+            if(coalesceDelay > 0 && !idle && coalesceLength + length <= payloadSize) {
+                if(coalesceBuffer == null || coalesceBuffer.length < payloadSize)
+                    coalesceBuffer = new byte[payloadSize];
+                System.arraycopy(data, offset, coalesceBuffer, coalesceLength, length);
+                if(coalesceLength == 0)
+                    handler.postDelayed(flushRunnable, coalesceDelay);
+                coalesceLength += length;
+                if(coalesceLength < payloadSize)
+                    start = false;
+                else
+                    flushCoalesceBuffer();
             } else {
-                Log.d(TAG,"write started, len="+data0.length);
+                flushCoalesceBuffer();
+                writeBuffer.add(data, offset, length);
             }
         }
-        // continues asynchronously in onCharacteristicWrite()
+        // outside of writeBuffer lock, so writeNext() doesn't wait for capture.
+        // concurrent writes can be captured in different order than queued
+        CaptureFile capture = this.capture;
+        if(capture != null && length > 0)
+            capture.tx(data, offset, length);
+        if(blocked)
+            onSerialWritable(false);
+        if(start)
+            handler.post(writeNextRunnable);
+        // continues asynchronously in writeNext() and onCharacteristicWrite()
+        return id;
+    }
+
+    /**
+     * pass data held back for coalescing to write queue
+     */
+    void flush() {
+        synchronized (writeBuffer) {
+            if(coalesceLength == 0)
+                return;
+            flushCoalesceBuffer();
+        }
+        handler.post(writeNextRunnable);
+    }
+
+    private void flushCoalesceBuffer() {
+        if(coalesceLength == 0)
+            return;
+        handler.removeCallbacks(flushRunnable);
+        writeBuffer.add(coalesceBuffer, 0, coalesceLength);
+        Log.d(TAG,"write coalesced, len="+coalesceLength);
+        coalesceLength = 0;
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if(canceled || !connected || writeCharacteristic == null)
+        if(canceled || writeCharacteristic == null)
+            return;
+        if(characteristic != writeCharacteristic) { // NOPMD - test object identity
+            gattQueue.complete(characteristic, status); // e.g. credits
+            return;
+        }
+        if(!connected)
             return;
         if(status != BluetoothGatt.GATT_SUCCESS) {
             onSerialIoError(new IOException("write failed"));
@@ -394,30 +868,106 @@ class SerialSocket extends BluetoothGattCallback {
         delegate.onCharacteristicWrite(gatt, characteristic, status);
         if(canceled)
             return;
-        if(characteristic == writeCharacteristic) { // NOPMD - test object identity
-            Log.d(TAG,"write finished, status="+status);
-            writeNext();
+        Log.d(TAG,"write finished, status="+status);
+        ArrayDeque<PendingWrite> completed = null;
+        synchronized (writeBuffer) {
+            if(writesInFlight > 0) {
+                LinkStats stats = this.stats;
+                if(stats != null)
+                    stats.onWrite(writeInFlightLength[writeInFlightHead], System.nanoTime() - writeInFlightTime[writeInFlightHead]);
+                writeConfirmed += writeInFlightLength[writeInFlightHead];
+                writeInFlightHead = (writeInFlightHead + 1) % writeInFlightLength.length;
+                writesInFlight--;
+            }
+            if(writesInFlight == 0 && writeBuffer.isEmpty())
+                flushCoalesceBuffer();
+            while(!pendingWrites.isEmpty() && pendingWrites.peek().end <= writeConfirmed) {
+                if(completed == null)
+                    completed = new ArrayDeque<>();
+                completed.add(pendingWrites.poll());
+            }
+        }
+        if(completed != null) {
+            long now = System.nanoTime();
+            for(PendingWrite pendingWrite : completed)
+                pendingWrite.callback.onWriteComplete(pendingWrite.id, now - pendingWrite.startTime);
         }
+        writeNext();
     }
 
+    /**
+     * runs in bluetooth I/O thread.
+     * start writes until queue is empty or maxWritesInFlight reached.
+     * if the bluetooth stack is busy, the chunk is retried after next onCharacteristicWrite().
+     * writes are started while holding the lock, else concurrent callers could reorder chunks.
+     * pauses while a GattQueue operation is pending, and resumes when it completed
+     */
     private void writeNext() {
-        final byte[] data;
+        int status = STATUS_SUCCESS;
+        boolean writable = false;
         synchronized (writeBuffer) {
-            if (!writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-                data = writeBuffer.remove(0);
-            } else {
-                writePending = false;
-                data = null;
+            while(writesInFlight < maxWritesInFlight && (writeRetry != null || !writeBuffer.isEmpty()) && delegate.canWrite()
+                    && gattQueue.canStartData()) {
+                // the polled array is reused by the next poll(). That is safe, as writeCharacteristic() passes
+                // the value to the bluetooth stack before returning, and writeRetry is written before the next poll()
+                byte[] data = writeRetry != null ? writeRetry : writeBuffer.poll(payloadSize);
+                writeRetry = null;
+                status = writeCharacteristic(writeCharacteristic, data);
+                if(status == STATUS_SUCCESS) {
+                    int slot = (writeInFlightHead + writesInFlight) % writeInFlightLength.length;
+                    writeInFlightLength[slot] = data.length;
+                    writeInFlightTime[slot] = System.nanoTime();
+                    writesInFlight++;
+                    Log.d(TAG,"write started, len="+data.length);
+                } else if(writesInFlight > 0) {
+                    Log.d(TAG,"write busy, status="+status+", inFlight="+writesInFlight);
+                    writeRetry = data;
+                    status = STATUS_SUCCESS;
+                    break;
+                } else {
+                    break;
+                }
             }
-        }
-        if(data != null) {
-            writeCharacteristic.setValue(data);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
-            } else {
-                Log.d(TAG,"write started, len="+data.length);
+            if(writeBlocked && queuedBytes() <= writeLowWatermark) {
+                writeBlocked = false;
+                writable = true;
+                Log.d(TAG,"write queue below low watermark");
             }
+            if(writeQueueLimit > 0 || writeQueueWaiters > 0)
+                writeBuffer.notifyAll(); // wake up blocked writers
+            gattQueue.onDataInFlight(writesInFlight);
+        }
+        if(status != STATUS_SUCCESS)
+            onSerialIoError(new IOException("write failed, status="+status));
+        else if(writable)
+            onSerialWritable(true);
+    }
+
+    private void failPendingWrites(Exception e) {
+        ArrayDeque<PendingWrite> failed;
+        synchronized (writeBuffer) {
+            if(pendingWrites.isEmpty())
+                return;
+            failed = new ArrayDeque<>(pendingWrites);
+            pendingWrites.clear();
+        }
+        for(PendingWrite pendingWrite : failed)
+            pendingWrite.callback.onWriteError(pendingWrite.id, e);
+    }
+
+    /**
+     * API 33 writeCharacteristic passes value per call, older versions use shared characteristic value.
+     * Older versions only return true/false, map to STATUS_SUCCESS/STATUS_FAILED
+     */
+    @SuppressWarnings("deprecation")
+    private int writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] data) {
+        if(gatt == null)
+            return STATUS_FAILED;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return gatt.writeCharacteristic(characteristic, data, characteristic.getWriteType());
+        } else {
+            characteristic.setValue(data);
+            return gatt.writeCharacteristic(characteristic) ? STATUS_SUCCESS : STATUS_FAILED;
         }
     }
 
@@ -425,23 +975,67 @@ class SerialSocket extends BluetoothGattCallback {
      * SerialListener
      */
     private void onSerialConnect() {
+        CaptureFile capture = this.capture;
+        if(capture != null)
+            capture.event("connect " + getLinkInfo());
         if (listener != null)
             listener.onSerialConnect();
     }
 
+    /**
+     * cached layout doesn't match the device, search again on next connect.
+     * not used for timeouts and disconnects, as they don't tell if the layout is still valid
+     */
+    private void invalidateCachedLayout() {
+        if(cachedLayout != null && !canceled) {
+            gattCache.remove(address);
+            cachedLayout = null;
+        }
+    }
+
     private void onSerialConnectError(Exception e) {
+        CaptureFile capture = this.capture;
+        if(capture != null && !canceled)
+            capture.event("connect error " + e);
         canceled = true;
+        if(gattQueue != null)
+            gattQueue.clear();
         if (listener != null)
             listener.onSerialConnectError(e);
     }
 
     private void onSerialRead(byte[] data) {
+        CaptureFile capture = this.capture;
+        if(capture != null)
+            capture.rx(data);
         if (listener != null)
             listener.onSerialRead(data);
     }
 
+    private void onSerialLinkUpdate() {
+        CaptureFile capture = this.capture;
+        if(capture != null)
+            capture.event("link " + getLinkInfo());
+        if (listener != null)
+            listener.onSerialLinkUpdate(getLinkInfo());
+    }
+
+    private void onSerialWritable(boolean writable) {
+        if (listener != null)
+            listener.onSerialWritable(writable);
+    }
+
     private void onSerialIoError(Exception e) {
-        writePending = false;
+        synchronized (writeBuffer) {
+            writesInFlight = 0;
+            writeInFlightHead = 0;
+        }
+        if(gattQueue != null)
+            gattQueue.clear();
+        failPendingWrites(e);
+        CaptureFile capture = this.capture;
+        if(capture != null && !canceled)
+            capture.event("io error " + e);
         canceled = true;
         if (listener != null)
             listener.onSerialIoError(e);
@@ -502,14 +1096,35 @@ class SerialSocket extends BluetoothGattCallback {
     }
 
     private class TelitDelegate extends DeviceDelegate {
+        private static final int MIN_READ_CREDITS = 16;
+        private static final int MAX_READ_CREDITS = 255;   // granted as single byte
+        private static final int READ_CREDITS_WINDOW = 250; // ms of notifications covered by granted credits
+        private static final int READ_BACKLOG_LIMIT = 64;   // chunks, stop granting if UI does not keep up
+
         private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
-        private int readCredits, writeCredits;
+        private final AtomicInteger writeCredits = new AtomicInteger();
+        // read credit state is accessed from gatt callbacks and onReadBacklog, guarded by this
+        private int readCredits;
+        private boolean readCreditsPending; // grant write not yet confirmed
+        private long lastReadTime;
+        private float readRate;             // notifications/s, exponential moving average
+        private volatile int readBacklog;
+
+        @Override
+        boolean needsFullSetup() {
+            return true;
+        }
 
         @Override
         boolean connectCharacteristics(BluetoothGattService gattService) {
             Log.d(TAG, "service telit tio 2.0");
-            readCredits = 0;
-            writeCredits = 0;
+            synchronized (this) {
+                readCredits = 0;
+                readCreditsPending = false;
+                lastReadTime = 0;
+                readRate = 0;
+            }
+            writeCredits.set(0);
             readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX);
             writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX);
             readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
@@ -540,104 +1155,159 @@ class SerialSocket extends BluetoothGattCallback {
                 return false;
             }
             readCreditsDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-            Log.d(TAG,"writing read credits characteristic descriptor");
-            if (!gatt.writeDescriptor(readCreditsDescriptor)) {
-                onSerialConnectError(new IOException("read credits characteristic CCCD descriptor not writable"));
-                return false;
-            }
-            Log.d(TAG, "writing read credits characteristic descriptor");
-            return false;
-            // continues asynchronously in connectCharacteristics2
+            BluetoothGatt gatt = SerialSocket.this.gatt;
+            gattQueue.submit(new GattQueue.Operation("write read credits characteristic descriptor", GattQueue.Priority.Setup, readCreditsDescriptor, SETUP_TIMEOUT) {
+                @Override
+                @SuppressWarnings("deprecation")
+                int start() {
+                    Log.d(TAG,"writing read credits characteristic descriptor");
+                    return gatt.writeDescriptor(readCreditsDescriptor) ? STATUS_SUCCESS : STATUS_FAILED;
+                }
+
+                @Override
+                void onComplete(int status) {
+                    Log.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        invalidateCachedLayout();
+                        onSerialConnectError(new IOException("write credits descriptor failed"));
+                    }
+                }
+
+                @Override
+                void onError(IOException e) {
+                    onSerialConnectError(e);
+                }
+            });
+            return true;
+            // MTU request and read characteristic descriptor are queued behind
         }
 
         @Override
         void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if(descriptor.getCharacteristic() == readCreditsCharacteristic) {
-                Log.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
-                if (status != BluetoothGatt.GATT_SUCCESS) {
-                    onSerialConnectError(new IOException("write credits descriptor failed"));
-                } else {
-                    connectCharacteristics2(gatt);
-                }
-            }
             if(descriptor.getCharacteristic() == readCharacteristic) {
                 Log.d(TAG, "writing read characteristic descriptor finished, status=" + status);
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
                     writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    grantReadCredits();
-                    // grantReadCredits includes gatt.writeCharacteristic(writeCreditsCharacteristic)
-                    // but we do not have to wait for confirmation, as it is the last write of connect phase.
+                    grantReadCredits(false); // queued, runs after read characteristic descriptor is completed
                 }
             }
         }
 
         @Override
-        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
             if(characteristic == readCreditsCharacteristic) { // NOPMD - test object identity
-                int newCredits = readCreditsCharacteristic.getValue()[0];
-                synchronized (writeBuffer) {
-                    writeCredits += newCredits;
-                }
-                Log.d(TAG, "got write credits +"+newCredits+" ="+writeCredits);
-
-                if (!writePending && !writeBuffer.isEmpty()) {
-                    Log.d(TAG, "resume blocked write");
-                    writeNext();
-                }
+                int newCredits = value[0] & 0xff;
+                int credits = writeCredits.addAndGet(newCredits);
+                Log.d(TAG, "got write credits +"+newCredits+" ="+credits);
+                writeNext(); // resume blocked write
             }
             if(characteristic == readCharacteristic) { // NOPMD - test object identity
-                grantReadCredits();
-                Log.d(TAG, "read, credits=" + readCredits);
+                updateReadRate();
+                grantReadCredits(true);
             }
         }
 
         @Override
         void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             if(characteristic == writeCharacteristic) { // NOPMD - test object identity
-                synchronized (writeBuffer) {
-                    if (writeCredits > 0)
-                        writeCredits -= 1;
-                }
-                Log.d(TAG, "write finished, credits=" + writeCredits);
-            }
-            if(characteristic == writeCreditsCharacteristic) { // NOPMD - test object identity
-                Log.d(TAG,"write credits finished, status="+status);
+                int credits;
+                do {
+                    credits = writeCredits.get();
+                } while (credits > 0 && !writeCredits.compareAndSet(credits, credits - 1));
+                Log.d(TAG, "write finished, credits=" + Math.max(credits - 1, 0));
             }
         }
 
         @Override
         boolean canWrite() {
-            if(writeCredits > 0)
+            if(writeCredits.get() > 0)
                 return true;
             Log.d(TAG, "no write credits");
             return false;
         }
 
+        @Override
+        boolean canPipelineWrites() {
+            return false; // credits are consumed in onCharacteristicWrite
+        }
+
+        @Override
+        void onReadBacklog(int chunks) {
+            int previous = readBacklog;
+            readBacklog = chunks;
+            if(previous > READ_BACKLOG_LIMIT && chunks <= READ_BACKLOG_LIMIT && connected)
+                handler.post(() -> grantReadCredits(false)); // resume after UI caught up
+        }
+
         @Override
         void disconnect() {
             readCreditsCharacteristic = null;
             writeCreditsCharacteristic = null;
         }
 
-        private void grantReadCredits() {
-            final int minReadCredits = 16;
-            final int maxReadCredits = 64;
-            if(readCredits > 0)
-                readCredits -= 1;
-            if(readCredits <= minReadCredits) {
-                int newCredits = maxReadCredits - readCredits;
+        private synchronized void updateReadRate() {
+            long now = SystemClock.elapsedRealtime();
+            if(lastReadTime != 0) {
+                float rate = 1000f / Math.max(now - lastReadTime, 1);
+                readRate = readRate == 0 ? rate : readRate * 0.9f + rate * 0.1f;
+            }
+            lastReadTime = now;
+        }
+
+        /**
+         * grant enough credits to cover READ_CREDITS_WINDOW at current notification rate.
+         * credits are granted in batches when half of the target is used, one grant at a time.
+         * no credits are granted while the UI backlog is above READ_BACKLOG_LIMIT, so the peer pauses
+         */
+        private void grantReadCredits(boolean consumed) {
+            int newCredits;
+            BluetoothGattCharacteristic characteristic = writeCreditsCharacteristic;
+            synchronized (this) {
+                if(consumed && readCredits > 0)
+                    readCredits -= 1;
+                if(readCreditsPending || readBacklog > READ_BACKLOG_LIMIT || characteristic == null)
+                    return;
+                int target = Math.round(readRate * READ_CREDITS_WINDOW / 1000f);
+                target = Math.max(MIN_READ_CREDITS, Math.min(MAX_READ_CREDITS, target));
+                if(readCredits > target / 2)
+                    return;
+                newCredits = target - readCredits;
                 readCredits += newCredits;
-                byte[] data = new byte[] {(byte)newCredits};
-                Log.d(TAG, "grant read credits +"+newCredits+" ="+readCredits);
-                writeCreditsCharacteristic.setValue(data);
-                if (!gatt.writeCharacteristic(writeCreditsCharacteristic)) {
+                readCreditsPending = true;
+                Log.d(TAG, "grant read credits +"+newCredits+" ="+readCredits+", rate="+Math.round(readRate));
+            }
+            byte[] data = new byte[] {(byte)newCredits};
+            gattQueue.submit(new GattQueue.Operation("write read credits", GattQueue.Priority.Credits, characteristic, CREDITS_TIMEOUT) {
+                @Override
+                int start() {
+                    return writeCharacteristic(characteristic, data);
+                }
+
+                @Override
+                void onComplete(int status) {
+                    Log.d(TAG,"write credits finished, status="+status);
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        onError(new IOException("write read credits failed, status=" + status));
+                        return;
+                    }
+                    synchronized (TelitDelegate.this) {
+                        readCreditsPending = false;
+                    }
+                }
+
+                @Override
+                void onError(IOException e) {
+                    synchronized (TelitDelegate.this) {
+                        readCredits -= newCredits;
+                        readCreditsPending = false;
+                    }
                     if(connected)
-                        onSerialIoError(new IOException("write read credits failed"));
+                        onSerialIoError(e);
                     else
-                        onSerialConnectError(new IOException("write read credits failed"));
+                        onSerialConnectError(e);
                 }
-            }
+            });
         }
 
     }
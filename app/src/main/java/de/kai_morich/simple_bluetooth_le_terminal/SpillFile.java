@@ -0,0 +1,86 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * append-only file of data chunks, written through memory mapped windows.
+ * record format: int length, length bytes
+ * not thread safe, caller has to synchronize
+ */
+final class SpillFile {
+
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    SpillFile(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+    }
+
+    /**
+     * end of last record
+     */
+    long position() {
+        return position;
+    }
+
+    void append(byte[] data) throws IOException {
+        int length = 4 + data.length;
+        if(window == null || window.remaining() < length) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW_SIZE, length));
+        }
+        window.putInt(data.length);
+        window.put(data);
+        position += length;
+    }
+
+    /**
+     * add records from start up to end or up to maxBytes to datas, at least one record.
+     * returns position after last added record
+     */
+    long read(long start, long end, int maxBytes, ArrayDeque<byte[]> datas) throws IOException {
+        MappedByteBuffer page = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(end - start, maxBytes));
+        if(page.remaining() >= 4) {
+            int length = page.getInt(0);
+            if(4 + length > page.capacity())
+                page = channel.map(FileChannel.MapMode.READ_ONLY, start, 4 + length);
+        }
+        long pos = start;
+        while(page.remaining() >= 4) {
+            int length = page.getInt(page.position());
+            if(page.remaining() < 4 + length)
+                break;
+            page.getInt();
+            byte[] data = new byte[length];
+            page.get(data);
+            datas.add(data);
+            pos += 4 + length;
+        }
+        return pos;
+    }
+
+    void delete() {
+        window = null;
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException ignored) {
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
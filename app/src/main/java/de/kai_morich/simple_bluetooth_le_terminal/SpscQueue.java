@@ -0,0 +1,62 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bounded lock free queue for exactly one producer thread and one consumer thread
+ *   - offer() only from producer, poll() only from consumer
+ *   - elements are written before the index is published, so they are visible when the index is
+ *   - tail is published with volatile write, as the producer can be a sequence of different
+ *     binder threads before API 26
+ */
+final class SpscQueue<T> {
+
+    private final Object[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next poll position, written by consumer
+    private final AtomicLong tail = new AtomicLong(); // next offer position, written by producer
+
+    /**
+     * capacity is rounded up to power of 2
+     */
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * returns false if full
+     */
+    boolean offer(T item) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length)
+            return false;
+        buffer[(int) t & mask] = item;
+        tail.set(t + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        int index = (int) h & mask;
+        T item = (T) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * approximate if called concurrently
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,146 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * send content of uri in chunks through SerialSocket write queue, without loading it completely into memory.
+ * runs in own thread, which also opens the uri, as content providers can block.
+ * pacing is done by waiting until at most WINDOW bytes are queued,
+ * so memory is bounded even with unbounded write queue, and by blocking in SerialSocket.write() at write queue limit
+ */
+class StreamSender implements Runnable {
+
+    /**
+     * called in sender or bluetooth thread. total, eta are -1 if unknown
+     */
+    interface ProgressListener {
+        void onSendProgress(long sent, long total, long bytesPerSecond, long eta);
+        void onSendFinished(long sent, Exception e);
+    }
+
+    private static final String TAG = "StreamSender";
+    private static final int CHUNK_SIZE = 4096;
+    private static final int WINDOW = 64 * 1024;       // bytes queued in SerialSocket
+    private static final long PROGRESS_INTERVAL = 500; // ms
+    private static final long WRITE_TIMEOUT = 1000;    // ms, check for cancel while write queue is full
+
+    private final SerialSocket socket;
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final ProgressListener listener;
+    private final Thread thread;
+    private volatile boolean canceled;
+    private long total = -1; // set by open()
+
+    StreamSender(SerialSocket socket, ContentResolver resolver, Uri uri, ProgressListener listener) {
+        this.socket = socket;
+        this.resolver = resolver;
+        this.uri = uri;
+        this.listener = listener;
+        thread = new Thread(this, TAG);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void cancel() {
+        canceled = true;
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long read = 0;
+        long startTime = SystemClock.elapsedRealtime();
+        long progressTime = startTime;
+        InputStream input = null;
+        try {
+            input = open();
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                if (canceled)
+                    throw new InterruptedIOException("send canceled");
+                write(buffer, length);
+                read += length;
+                long now = SystemClock.elapsedRealtime();
+                if (now - progressTime >= PROGRESS_INTERVAL) {
+                    progressTime = now;
+                    long sent = Math.max(read - socket.getWriteQueueSize(), 0);
+                    long bytesPerSecond = sent * 1000 / Math.max(now - startTime, 1);
+                    long eta = total >= 0 && bytesPerSecond > 0 ? (total - sent) * 1000 / bytesPerSecond : -1;
+                    listener.onSendProgress(sent, total, bytesPerSecond, eta);
+                }
+            }
+            Log.d(TAG, "read finished, len=" + read);
+            final long sent = read;
+            // empty write completes when all previous data is sent
+            socket.write(buffer, 0, 0, 0, new SerialSocket.WriteCallback() {
+                @Override
+                public void onWriteComplete(long id, long latencyNanos) {
+                    long now = SystemClock.elapsedRealtime();
+                    listener.onSendProgress(sent, total, sent * 1000 / Math.max(now - startTime, 1), 0);
+                    listener.onSendFinished(sent, null);
+                }
+
+                @Override
+                public void onWriteError(long id, Exception e) {
+                    listener.onSendFinished(sent, e);
+                }
+            });
+        } catch (IOException e) {
+            Log.d(TAG, "send failed", e);
+            listener.onSendFinished(Math.max(read - socket.getWriteQueueSize(), 0), e);
+        } finally {
+            try {
+                if (input != null)
+                    input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private InputStream open() throws IOException {
+        try {
+            AssetFileDescriptor fd = resolver.openAssetFileDescriptor(uri, "r");
+            if (fd != null) {
+                total = fd.getLength();
+                fd.close();
+            }
+        } catch (Exception ignored) {
+        }
+        InputStream input;
+        try {
+            input = resolver.openInputStream(uri);
+        } catch (SecurityException e) {
+            throw new IOException("cannot open " + uri, e);
+        }
+        if (input == null)
+            throw new IOException("cannot open " + uri);
+        Log.d(TAG, "sending " + uri + ", length=" + total);
+        return input;
+    }
+
+    private void write(byte[] data, int length) throws IOException {
+        while (true) {
+            if (canceled)
+                throw new InterruptedIOException("send canceled");
+            if (!socket.awaitWriteQueue(WINDOW, WRITE_TIMEOUT))
+                continue;
+            try {
+                socket.write(data, 0, length, WRITE_TIMEOUT, null);
+                return;
+            } catch (SerialSocket.WriteQueueFullException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * merge received data chunks into TASKER_BLE broadcasts
+ *   - a broadcast is sent flushInterval after the first pending chunk, or earlier if maxBatchSize bytes are pending
+ *   - at most maxRate broadcasts per second, data arriving meanwhile is merged into the next broadcast
+ *   - each chunk has a sequence number. Chunks exceeding the pending limit are dropped, which shows up
+ *     as gap between seq + count of one broadcast and seq of the next broadcast, and as dropped count
+ *     in the next broadcast. A broadcast only contains consecutive chunks, so data after a gap starts a new broadcast
+ *   - data is only sent in extras. The intent uri is just 'tasker:', unless uriData is set to also
+ *     put the text into the uri, as before batching
+ *   - broadcasts are tagged with the source device address
+ * add() can be called from any thread, broadcasts are sent from looper thread
+ */
+final class TaskerBatcher {
+
+    static final String ACTION = "TASKER_BLE";
+    private static final int PENDING_BATCHES = 16; // pending limit in multiples of maxBatchSize
+
+    private static final class Chunk {
+        final byte[] data;
+        final long seq;
+
+        Chunk(byte[] data, long seq) {
+            this.data = data;
+            this.seq = seq;
+        }
+    }
+
+    private final Context context;
+    private final String address; // null if not from a device
+    private final Handler handler;
+    private final Runnable flushRunnable = this::flush;
+    private final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+    private int pendingBytes;
+    private long nextSeq;       // sequence number of next added chunk
+    private int dropped;        // chunks dropped since last broadcast
+    private long flushTime;     // uptime of scheduled flush, or 0 if none
+    private long lastSendTime;
+
+    private int flushInterval = 100;   // ms
+    private int maxBatchSize = 4096;   // bytes
+    private int maxRate = 10;          // broadcasts per second
+    private boolean uriData;
+
+    TaskerBatcher(Context context, String address, Looper looper) {
+        this.context = context;
+        this.address = address;
+        handler = new Handler(looper);
+    }
+
+    /**
+     * values <= 0 keep the current setting
+     */
+    synchronized void configure(int flushInterval, int maxBatchSize, int maxRate, boolean uriData) {
+        if(flushInterval > 0) this.flushInterval = flushInterval;
+        if(maxBatchSize > 0)  this.maxBatchSize = maxBatchSize;
+        if(maxRate > 0)       this.maxRate = maxRate;
+        this.uriData = uriData;
+    }
+
+    synchronized void add(byte[] data) {
+        long seq = nextSeq++;
+        if(pendingBytes + data.length > maxBatchSize * PENDING_BATCHES) {
+            dropped++;
+            return;
+        }
+        pending.add(new Chunk(data, seq));
+        pendingBytes += data.length;
+        schedule();
+    }
+
+    /**
+     * drop pending data
+     */
+    void close() {
+        synchronized (this) {
+            pending.clear();
+            pendingBytes = 0;
+            flushTime = 0;
+        }
+        handler.removeCallbacks(flushRunnable);
+    }
+
+    private void schedule() {
+        long now = SystemClock.uptimeMillis();
+        long time = pendingBytes >= maxBatchSize ? now : now + flushInterval;
+        time = Math.max(time, lastSendTime + 1000 / maxRate);
+        if(flushTime != 0 && flushTime <= time)
+            return;
+        if(flushTime != 0)
+            handler.removeCallbacks(flushRunnable);
+        flushTime = time;
+        handler.postAtTime(flushRunnable, time);
+    }
+
+    private void flush() {
+        ByteArrayOutputStream data;
+        String[] chunks;
+        long seq;
+        int dropped;
+        boolean uriData;
+        synchronized (this) {
+            flushTime = 0;
+            if(pending.isEmpty())
+                return;
+            seq = pending.peek().seq;
+            int count = 0, length = 0;
+            for(Chunk chunk : pending) {
+                if(count > 0 && (length + chunk.data.length > maxBatchSize || chunk.seq != seq + count))
+                    break;
+                count++;
+                length += chunk.data.length;
+            }
+            data = new ByteArrayOutputStream(length);
+            chunks = new String[count];
+            for(int i = 0; i < count; i++) {
+                byte[] chunk = pending.poll().data;
+                data.write(chunk, 0, chunk.length);
+                chunks[i] = new String(chunk);
+            }
+            pendingBytes -= length;
+            dropped = this.dropped;
+            this.dropped = 0;
+            uriData = this.uriData;
+            lastSendTime = SystemClock.uptimeMillis();
+            if(!pending.isEmpty())
+                schedule();
+        }
+        String text = data.toString();
+        Intent intent = new Intent(ACTION);
+        intent.setData(Uri.parse(uriData ? "tasker:" + text : "tasker:"));
+        intent.putExtra("seq", seq);
+        intent.putExtra("count", chunks.length);
+        intent.putExtra("dropped", dropped);
+        intent.putExtra("text", text);
+        intent.putExtra("chunks", chunks);
+        intent.putExtra("data", data.toByteArray());
+        if(address != null)
+            intent.putExtra("macAddress", address);
+        context.sendBroadcast(intent);
+    }
+}
@@ -9,9 +9,12 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -26,12 +29,16 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import java.io.File;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Locale;
 
 public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener {
 
@@ -41,6 +48,7 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     private SerialService service;
 
     private TextView receiveText;
+    private TextView statsText;
     private TextView sendText;
     private TextUtil.HexWatcher hexWatcher;
 
@@ -49,6 +57,15 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     private boolean hexEnabled = false;
     private boolean pendingNewline = false;
     private String newline = TextUtil.newline_crlf;
+    private boolean statsEnabled = false;
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable statsRunnable = this::updateStats;
+
+    private final ActivityResultLauncher<String> sendFileLauncher;
+
+    public TerminalFragment() {
+        sendFileLauncher = registerForActivityResult(new ActivityResultContracts.GetContent(), this::sendFile);
+    }
 
     /*
      * Lifecycle
@@ -76,10 +93,13 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             service.attach(this);
         else
             getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
+        if(statsEnabled)
+            statsHandler.post(statsRunnable);
     }
 
     @Override
     public void onStop() {
+        statsHandler.removeCallbacks(statsRunnable);
         if(service != null && !getActivity().isChangingConfigurations())
             service.detach();
         super.onStop();
@@ -131,6 +151,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
         receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
         receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
+        statsText = view.findViewById(R.id.stats_text);
+        statsText.setVisibility(statsEnabled ? View.VISIBLE : View.GONE);
 
         sendText = view.findViewById(R.id.send_text);
         hexWatcher = new TextUtil.HexWatcher(sendText);
@@ -150,6 +172,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     public void onPrepareOptionsMenu(@NonNull Menu menu) {
         menu.findItem(R.id.hex).setChecked(hexEnabled);
+        menu.findItem(R.id.capture).setChecked(service != null && service.isCaptureEnabled());
+        menu.findItem(R.id.stats).setChecked(statsEnabled);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             menu.findItem(R.id.backgroundNotification).setChecked(service != null && service.areNotificationsEnabled());
         } else {
@@ -176,6 +200,75 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             });
             builder.create().show();
             return true;
+        } else if (id == R.id.framing) {
+            String[] framingNames = getResources().getStringArray(R.array.framing_names);
+            String[] framingValues = getResources().getStringArray(R.array.framing_values);
+            int pos = service != null ? Arrays.asList(framingValues).indexOf(service.getFraming()) : -1;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Framing");
+            builder.setSingleChoiceItems(framingNames, pos, (dialog, item1) -> {
+                if (service != null)
+                    service.setFraming(framingValues[item1]);
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.sendFile) {
+            if(connected != Connected.True) {
+                Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            } else {
+                sendFileLauncher.launch("*/*");
+            }
+            return true;
+        } else if (id == R.id.linkProfile) {
+            String[] linkProfileNames = getResources().getStringArray(R.array.link_profile_names);
+            int pos = service != null ? service.getLinkProfile().ordinal() : -1;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Link profile");
+            builder.setSingleChoiceItems(linkProfileNames, pos, (dialog, item1) -> {
+                if (service != null)
+                    service.setLinkProfile(SerialSocket.LinkProfile.values()[item1]);
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.capture) {
+            if (service != null) {
+                boolean enabled = !service.isCaptureEnabled();
+                service.setCaptureEnabled(enabled);
+                item.setChecked(enabled);
+                File file = service.getCaptureFile();
+                if (file != null)
+                    status((enabled ? "capturing to " : "captured to ") + file.getPath());
+            }
+            return true;
+        } else if (id == R.id.replay) {
+            File file = service != null ? service.getCaptureFile() : null;
+            if (file == null) {
+                Toast.makeText(getActivity(), "no capture", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            String[] speedNames = {"Recorded timing", "10x speed", "Max speed"};
+            double[] speedValues = {1, 10, 0};
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Replay " + file.getName());
+            builder.setItems(speedNames, (dialog, item1) -> {
+                if (connected != Connected.False)
+                    disconnect();
+                status("replaying...");
+                connected = Connected.Pending;
+                service.replay(file, speedValues[item1]);
+            });
+            builder.create().show();
+            return true;
+        } else if (id == R.id.stats) {
+            statsEnabled = !statsEnabled;
+            item.setChecked(statsEnabled);
+            statsText.setVisibility(statsEnabled ? View.VISIBLE : View.GONE);
+            statsHandler.removeCallbacks(statsRunnable);
+            if (statsEnabled)
+                statsHandler.post(statsRunnable);
+            return true;
         } else if (id == R.id.hex) {
             hexEnabled = !hexEnabled;
             sendText.setText("");
@@ -236,20 +329,53 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
                 msg = str;
                 data = (str + newline).getBytes();
             }
+            service.write(data); // echo only accepted data
             SpannableStringBuilder spn = new SpannableStringBuilder(msg + '\n');
             spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorSendText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             receiveText.append(spn);
-            service.write(data);
+        } catch (SerialSocket.WriteQueueFullException e) {
+            Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_SHORT).show();
         } catch (Exception e) {
             onSerialIoError(e);
         }
     }
 
+    private void sendFile(Uri uri) {
+        if(uri == null || service == null)
+            return;
+        try {
+            status("sending " + uri.getLastPathSegment());
+            service.sendStream(uri, new StreamSender.ProgressListener() {
+                @Override
+                public void onSendProgress(long sent, long total, long bytesPerSecond, long eta) {
+                    if(eta < 0)
+                        status(String.format(Locale.US, "sent %d bytes, %d bytes/s", sent, bytesPerSecond));
+                    else if(eta > 0)
+                        status(String.format(Locale.US, "sent %d/%d bytes, %d bytes/s, %d s left", sent, total, bytesPerSecond, eta / 1000));
+                }
+
+                @Override
+                public void onSendFinished(long sent, Exception e) {
+                    if(e == null)
+                        status("sent " + sent + " bytes");
+                    else
+                        status("send failed after " + sent + " bytes: " + e.getMessage());
+                }
+            });
+        } catch (Exception e) {
+            status("send failed: " + e.getMessage());
+        }
+    }
+
     private void receive(ArrayDeque<byte[]> datas) {
         SpannableStringBuilder spn = new SpannableStringBuilder();
+        // binary frames have no line ending, show each in own line
+        boolean frameNewline = service != null && Framer.isBinary(service.getFraming());
         for (byte[] data : datas) {
             if (hexEnabled) {
                 spn.append(TextUtil.toHexString(data)).append('\n');
+            } else if (frameNewline) {
+                spn.append(TextUtil.toCaretString(new String(data), true)).append('\n');
             } else {
                 String msg = new String(data);
                 if (newline.equals(TextUtil.newline_crlf) && msg.length() > 0) {
@@ -273,6 +399,12 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         receiveText.append(spn);
     }
 
+    private void updateStats() {
+        LinkStats.Snapshot stats = service != null ? service.getStats() : null;
+        statsText.setText(stats != null ? stats.toString() : "no statistics");
+        statsHandler.postDelayed(statsRunnable, 1000);
+    }
+
     private void status(String str) {
         SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
         spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
@@ -329,4 +461,14 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         disconnect();
     }
 
+    @Override
+    public void onSerialLinkUpdate(SerialSocket.LinkInfo info) {
+        status(info.toString());
+    }
+
+    @Override
+    public void onSerialWritable(boolean writable) {
+        // nop, manual sends are too small to require pacing
+    }
+
 }
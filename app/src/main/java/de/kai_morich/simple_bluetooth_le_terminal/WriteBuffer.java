@@ -0,0 +1,142 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * preallocated byte ring buffer for queued writes
+ *   - each write is kept as (offset, length) slice, so chunks never span multiple writes
+ *   - poll() returns next chunk of at most payload size bytes, in order of add()
+ *   - add() copies into the ring, poll() copies out of it. Full size chunks are copied into a reused
+ *     array, so streaming writes allocate no garbage per chunk
+ *   - storage grows by doubling if full
+ * not thread safe, caller has to synchronize
+ */
+final class WriteBuffer {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_SLICES = 64;
+
+    private byte[] data;
+    private int dataHead, dataSize;     // byte ring
+    private int[] sliceOffset, sliceLength;
+    private int sliceHead, sliceCount;  // slice ring
+    private byte[] fullChunk;           // returned by poll() for chunks of maxLength
+
+    WriteBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    WriteBuffer(int capacity) {
+        data = new byte[Math.max(capacity, 1)];
+        sliceOffset = new int[DEFAULT_SLICES];
+        sliceLength = new int[DEFAULT_SLICES];
+    }
+
+    boolean isEmpty() { return sliceCount == 0; }
+
+    /**
+     * number of queued bytes
+     */
+    int size() { return dataSize; }
+
+    int capacity() { return data.length; }
+
+    void clear() {
+        dataHead = dataSize = 0;
+        sliceHead = sliceCount = 0;
+    }
+
+    void add(byte[] src) {
+        add(src, 0, src.length);
+    }
+
+    void add(byte[] src, int offset, int length) {
+        if(length <= 0)
+            return;
+        ensureCapacity(dataSize + length);
+        if(sliceCount == sliceOffset.length)
+            growSlices();
+        int tail = (dataHead + dataSize) % data.length;
+        int first = Math.min(length, data.length - tail);
+        System.arraycopy(src, offset, data, tail, first);
+        if(first < length)
+            System.arraycopy(src, offset + first, data, 0, length - first);
+        int slice = (sliceHead + sliceCount) % sliceOffset.length;
+        sliceOffset[slice] = tail;
+        sliceLength[slice] = length;
+        sliceCount++;
+        dataSize += length;
+    }
+
+    /**
+     * length of next chunk returned by poll(), or 0 if empty
+     */
+    int peekLength(int maxLength) {
+        return sliceCount == 0 ? 0 : Math.min(sliceLength[sliceHead], maxLength);
+    }
+
+    /**
+     * remove next chunk of at most maxLength bytes from head slice.
+     * a chunk of maxLength bytes is returned in the same array as the previous one,
+     * so it is only valid until the next poll()
+     */
+    byte[] poll(int maxLength) {
+        if(sliceCount == 0)
+            return null;
+        int offset = sliceOffset[sliceHead];
+        int length = Math.min(sliceLength[sliceHead], maxLength);
+        byte[] chunk;
+        if(length == maxLength) {
+            if(fullChunk == null || fullChunk.length != length)
+                fullChunk = new byte[length];
+            chunk = fullChunk;
+        } else {
+            chunk = new byte[length];
+        }
+        int first = Math.min(length, data.length - offset);
+        System.arraycopy(data, offset, chunk, 0, first);
+        if(first < length)
+            System.arraycopy(data, 0, chunk, first, length - first);
+        if(length == sliceLength[sliceHead]) {
+            sliceHead = (sliceHead + 1) % sliceOffset.length;
+            sliceCount--;
+        } else {
+            sliceOffset[sliceHead] = (offset + length) % data.length;
+            sliceLength[sliceHead] -= length;
+        }
+        dataHead = (dataHead + length) % data.length;
+        dataSize -= length;
+        if(sliceCount == 0)
+            dataHead = 0; // keep next writes contiguous
+        return chunk;
+    }
+
+    private void ensureCapacity(int required) {
+        if(required <= data.length)
+            return;
+        int capacity = data.length;
+        while(capacity < required)
+            capacity *= 2;
+        byte[] newData = new byte[capacity];
+        int first = Math.min(dataSize, data.length - dataHead);
+        System.arraycopy(data, dataHead, newData, 0, first);
+        System.arraycopy(data, 0, newData, first, dataSize - first);
+        for(int i = 0; i < sliceCount; i++) {
+            int slice = (sliceHead + i) % sliceOffset.length;
+            sliceOffset[slice] = (sliceOffset[slice] - dataHead + data.length) % data.length;
+        }
+        data = newData;
+        dataHead = 0;
+    }
+
+    private void growSlices() {
+        int[] newOffset = new int[sliceOffset.length * 2];
+        int[] newLength = new int[sliceLength.length * 2];
+        for(int i = 0; i < sliceCount; i++) {
+            int slice = (sliceHead + i) % sliceOffset.length;
+            newOffset[i] = sliceOffset[slice];
+            newLength[i] = sliceLength[slice];
+        }
+        sliceOffset = newOffset;
+        sliceLength = newLength;
+        sliceHead = 0;
+    }
+}
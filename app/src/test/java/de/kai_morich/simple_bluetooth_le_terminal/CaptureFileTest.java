@@ -0,0 +1,117 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CaptureFile written records replayed with CaptureReplay
+ */
+public class CaptureFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Recorder implements SerialListener {
+        boolean connected;
+        Exception connectError, ioError;
+        final List<byte[]> reads = new ArrayList<>();
+
+        @Override public void onSerialConnect() { connected = true; }
+        @Override public void onSerialConnectError(Exception e) { connectError = e; }
+        @Override public void onSerialRead(byte[] data) { reads.add(data); }
+        @Override public void onSerialRead(ArrayDeque<byte[]> datas) { reads.addAll(datas); }
+        @Override public void onSerialIoError(Exception e) { ioError = e; }
+        @Override public void onSerialWritable(boolean writable) { }
+        @Override public void onSerialLinkUpdate(SerialSocket.LinkInfo info) { }
+    }
+
+    private static Recorder replay(File file) {
+        Recorder recorder = new Recorder();
+        new CaptureReplay(file, 0, recorder, () -> false).run();
+        return recorder;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = folder.newFile("capture.bin");
+        CaptureFile capture = new CaptureFile(file);
+        capture.event("connected");
+        capture.rx("one".getBytes());
+        capture.tx("xxsentxx".getBytes(), 2, 4);
+        capture.rx(new byte[0]);
+        capture.rx("two".getBytes());
+        capture.close();
+        capture.rx("after close".getBytes());
+
+        long expectedSize = CaptureFile.HEADER_SIZE + 5 * CaptureFile.RECORD_HEADER_SIZE + "connectedonesendtwo".length();
+        assertEquals(expectedSize, file.length());
+        assertEquals(16, new File(file.getPath() + CaptureFile.INDEX_SUFFIX).length()); // index written on close
+        assertEquals(CaptureFile.HEADER_SIZE, CaptureFile.seek(file, 0));
+
+        Recorder recorder = replay(file);
+        assertTrue(recorder.connected);
+        assertNull(recorder.connectError);
+        assertEquals(3, recorder.reads.size());
+        assertArrayEquals("one".getBytes(), recorder.reads.get(0));
+        assertArrayEquals(new byte[0], recorder.reads.get(1));
+        assertArrayEquals("two".getBytes(), recorder.reads.get(2));
+        assertEquals("replay finished", recorder.ioError.getMessage());
+    }
+
+    @Test
+    public void truncatedRecordIgnored() throws IOException {
+        File file = folder.newFile("capture.bin");
+        CaptureFile capture = new CaptureFile(file);
+        capture.rx("complete".getBytes());
+        capture.rx("truncated".getBytes());
+        capture.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        Recorder recorder = replay(file);
+        assertEquals(1, recorder.reads.size());
+        assertArrayEquals("complete".getBytes(), recorder.reads.get(0));
+        assertEquals("replay finished", recorder.ioError.getMessage());
+    }
+
+    @Test
+    public void pausedWhileBacklogFull() throws IOException {
+        File file = folder.newFile("capture.bin");
+        CaptureFile capture = new CaptureFile(file);
+        capture.rx("a".getBytes());
+        capture.rx("b".getBytes());
+        capture.close();
+        Recorder recorder = new Recorder();
+        int[] checks = new int[1];
+        new CaptureReplay(file, 0, recorder, () -> {
+            checks[0]++;
+            return recorder.reads.size() == 1 && checks[0] < 5; // full after first chunk
+        }).run();
+        assertEquals(5, checks[0]); // 1 before first chunk, 3 full, 1 before second chunk
+        assertEquals(2, recorder.reads.size());
+    }
+
+    @Test
+    public void notACaptureFile() throws IOException {
+        File file = folder.newFile("other.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write("not a capture file at all".getBytes());
+        }
+        Recorder recorder = replay(file);
+        assertTrue(!recorder.connected);
+        assertEquals("not a capture file", recorder.connectError.getMessage());
+    }
+}
@@ -0,0 +1,165 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FramerTest {
+
+    private static final byte END = (byte) 0xC0, ESC = (byte) 0xDB, ESC_END = (byte) 0xDC, ESC_ESC = (byte) 0xDD;
+
+    private static List<byte[]> feed(Framer framer, byte[]... chunks) {
+        List<byte[]> frames = new ArrayList<>();
+        for(byte[] chunk : chunks)
+            framer.feed(chunk, frames::add);
+        return frames;
+    }
+
+    private static void assertFrames(List<byte[]> frames, byte[]... expected) {
+        assertEquals(expected.length, frames.size());
+        for(int i = 0; i < expected.length; i++)
+            assertArrayEquals("frame " + i, expected[i], frames.get(i));
+    }
+
+    /**
+     * feeding data split at any position has to result in the same frames as unsplit data
+     */
+    private static void assertSplitInvariant(String framing, byte[] delimiter, int lengthSize, byte[] data, byte[]... expected) {
+        assertFrames(feed(Framer.create(framing, delimiter, lengthSize), data), expected);
+        for(int i = 0; i <= data.length; i++) {
+            byte[] first = Arrays.copyOfRange(data, 0, i);
+            byte[] second = Arrays.copyOfRange(data, i, data.length);
+            assertFrames(feed(Framer.create(framing, delimiter, lengthSize), first, second), expected);
+        }
+        byte[][] single = new byte[data.length][];
+        for(int i = 0; i < data.length; i++)
+            single[i] = new byte[]{data[i]};
+        assertFrames(feed(Framer.create(framing, delimiter, lengthSize), single), expected);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for(int i = 0; i < values.length; i++)
+            data[i] = (byte) values[i];
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for(byte[] part : parts)
+            data.write(part, 0, part.length);
+        return data.toByteArray();
+    }
+
+    private static byte[] cobs(byte[] frame) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] block = new byte[255];
+        int code = 1;
+        for(byte b : frame) {
+            if(b != 0)
+                block[code++] = b;
+            if(b == 0 || code == 0xff) {
+                block[0] = (byte) code;
+                data.write(block, 0, code);
+                code = 1;
+            }
+        }
+        block[0] = (byte) code;
+        data.write(block, 0, code);
+        data.write(0);
+        return data.toByteArray();
+    }
+
+    @Test
+    public void delimiterSplitAcrossChunks() {
+        Framer framer = Framer.create("crlf", null, 0);
+        assertFrames(feed(framer, "ab\r".getBytes(), "\ncd\r\n".getBytes(), "e".getBytes()),
+                "ab\r\n".getBytes(), "cd\r\n".getBytes());
+        assertFrames(feed(framer, "\r\n".getBytes()), "e\r\n".getBytes());
+        assertSplitInvariant("crlf", null, 0, "ab\r\r\ncd\r\n".getBytes(), "ab\r\r\n".getBytes(), "cd\r\n".getBytes());
+    }
+
+    @Test
+    public void delimiterPartialMatchFallback() {
+        // after "aa" mismatch at 'a', KMP continues with matched prefix "aa" instead of restarting
+        byte[] delimiter = "aab".getBytes();
+        assertSplitInvariant("delimiter", delimiter, 0, "xaaab-aab".getBytes(), "xaaab".getBytes(), "-aab".getBytes());
+        assertSplitInvariant("delimiter", delimiter, 0, "aaaaab".getBytes(), "aaaaab".getBytes());
+    }
+
+    @Test
+    public void delimiterOverlongLine() {
+        byte[] line = new byte[Framer.MAX_FRAME_SIZE + 10];
+        Arrays.fill(line, (byte) 'x');
+        line[line.length - 1] = '\n';
+        List<byte[]> frames = feed(Framer.create("lf", null, 0), Arrays.copyOf(line, 1000), Arrays.copyOfRange(line, 1000, line.length));
+        assertEquals(2, frames.size());
+        assertEquals(Framer.MAX_FRAME_SIZE, frames.get(0).length);
+        assertEquals(10, frames.get(1).length);
+    }
+
+    @Test
+    public void lengthPrefixed() {
+        assertSplitInvariant("length", null, 2, bytes(0, 3, 'a', 'b', 'c', 0, 0, 0, 1, 'd'),
+                "abc".getBytes(), new byte[0], "d".getBytes());
+        assertSplitInvariant("length", null, 1, bytes(2, 'a', 'b', 1, 'c'), "ab".getBytes(), "c".getBytes());
+        assertSplitInvariant("length", null, 4, bytes(0, 0, 1, 0, 'z'));
+    }
+
+    @Test
+    public void lengthPrefixedLargeFrame() {
+        byte[] payload = new byte[300];
+        for(int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+        byte[] data = concat(bytes(1, 44), payload);
+        assertFrames(feed(Framer.create("length", null, 2), Arrays.copyOf(data, 1), Arrays.copyOfRange(data, 1, 100),
+                Arrays.copyOfRange(data, 100, data.length)), payload);
+    }
+
+    @Test
+    public void slipEscapeAtChunkEnd() {
+        Framer framer = Framer.create("slip", null, 0);
+        assertFrames(feed(framer, bytes('a', ESC), bytes(ESC_END, 'b', ESC), bytes(ESC_ESC, END)),
+                bytes('a', END, 'b', ESC));
+        assertSplitInvariant("slip", null, 0, bytes(END, 'a', ESC, ESC_END, END, END, ESC, ESC_ESC, 'b', END),
+                bytes('a', END), bytes(ESC, 'b'));
+    }
+
+    @Test
+    public void slipOverflowDiscardsUntilEnd() {
+        byte[] data = new byte[Framer.MAX_FRAME_SIZE + 1];
+        Arrays.fill(data, (byte) 'x');
+        Framer framer = Framer.create("slip", null, 0);
+        assertFrames(feed(framer, data, bytes('y', END, 'z', END)), bytes('z'));
+    }
+
+    @Test
+    public void cobs() {
+        assertSplitInvariant("cobs", null, 0, concat(cobs("ab".getBytes()), cobs(bytes(0)), cobs(bytes('c', 0, 'd'))),
+                "ab".getBytes(), bytes(0), bytes('c', 0, 'd'));
+    }
+
+    @Test
+    public void cobsFullBlock() {
+        byte[] block = new byte[254];
+        for(int i = 0; i < block.length; i++)
+            block[i] = (byte) (i + 1);
+        byte[] withZero = concat(block, bytes(0, 5));
+        byte[] longFrame = concat(block, block, bytes(7));
+        byte[] data = concat(cobs(block), cobs(withZero), cobs(longFrame));
+        assertEquals((byte) 0xff, data[0]);
+        assertSplitInvariant("cobs", null, 0, data, block, withZero, longFrame);
+    }
+
+    @Test
+    public void cobsInvalidFrameDropped() {
+        Framer framer = Framer.create("cobs", null, 0);
+        assertFrames(feed(framer, bytes(5, 'a', 0), cobs("ok".getBytes())), "ok".getBytes());
+    }
+}
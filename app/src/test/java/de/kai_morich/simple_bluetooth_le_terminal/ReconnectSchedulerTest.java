@@ -0,0 +1,76 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReconnectSchedulerTest {
+
+    private int attempts;
+    private ReconnectScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ReconnectScheduler(new Handler(Looper.getMainLooper()), () -> attempts++);
+    }
+
+    private static void idle(long ms) {
+        shadowOf(Looper.getMainLooper()).idleFor(ms, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void backoffBounds() {
+        for(int i = 0; i < 20; i++) {
+            long maxDelay = Math.min(1000L << i, 60000);
+            long delay = scheduler.schedule(0);
+            assertTrue("attempt " + i + " delay " + delay, delay >= maxDelay / 2 && delay <= maxDelay);
+            assertEquals(0, scheduler.schedule(0)); // already pending
+            idle(delay - 1);
+            assertEquals(i, attempts);
+            idle(1);
+            assertEquals(i + 1, attempts);
+        }
+        assertEquals(20, scheduler.getAttempts());
+    }
+
+    @Test
+    public void lastAttemptAtTimeout() {
+        long start = SystemClock.elapsedRealtime();
+        long timeout = 10000;
+        long delay;
+        while((delay = scheduler.schedule(timeout)) >= 0) {
+            assertTrue(delay > 0);
+            assertTrue(SystemClock.elapsedRealtime() + delay - start <= timeout);
+            idle(delay);
+        }
+        assertEquals(timeout, SystemClock.elapsedRealtime() - start);
+        assertEquals(attempts, scheduler.getAttempts());
+        assertEquals(-1, scheduler.schedule(timeout));
+    }
+
+    @Test
+    public void cancelResetsBackoff() {
+        scheduler.schedule(0);
+        scheduler.cancel();
+        idle(2000);
+        assertEquals(0, attempts);
+        assertEquals(0, scheduler.getAttempts());
+        for(int i = 0; i < 5; i++)
+            idle(scheduler.schedule(0));
+        scheduler.cancel();
+        long delay = scheduler.schedule(1000);
+        assertTrue(delay >= 500 && delay <= 1000);
+    }
+}
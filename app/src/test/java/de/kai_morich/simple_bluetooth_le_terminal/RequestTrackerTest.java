@@ -0,0 +1,121 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class RequestTrackerTest {
+
+    private static class Result implements RequestTracker.Listener {
+        byte[] response;
+        IOException error;
+
+        @Override public void onResponse(byte[] response, long latencyNanos) { this.response = response; }
+        @Override public void onError(IOException e) { error = e; }
+    }
+
+    private RequestTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new RequestTracker(new Handler(Looper.getMainLooper()));
+    }
+
+    private static void idle(long ms) {
+        shadowOf(Looper.getMainLooper()).idleFor(ms, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void oldestMatchingRequestCompleted() throws IOException {
+        Result first = new Result(), second = new Result(), other = new Result();
+        tracker.submit(RequestTracker.Matcher.prefix("OK"), 1000, first);
+        tracker.submit(RequestTracker.Matcher.regex("ERR \\d+"), 1000, other);
+        tracker.submit(RequestTracker.Matcher.prefix("OK"), 1000, second);
+        assertFalse(tracker.onFrame("unrelated".getBytes()));
+        assertTrue(tracker.onFrame("OK 1".getBytes()));
+        assertArrayEquals("OK 1".getBytes(), first.response);
+        assertNull(second.response);
+        assertTrue(tracker.onFrame("OK 2".getBytes()));
+        assertArrayEquals("OK 2".getBytes(), second.response);
+        assertTrue(tracker.onFrame("x ERR 42".getBytes()));
+        assertArrayEquals("x ERR 42".getBytes(), other.response);
+        assertFalse(tracker.onFrame("OK 3".getBytes()));
+    }
+
+    @Test
+    public void frameIdMatcher() {
+        RequestTracker.Matcher matcher = RequestTracker.Matcher.frameId(new byte[]{7, 1}, 2);
+        assertTrue(matcher.matches(new byte[]{0, 0, 7, 1, 9}));
+        assertFalse(matcher.matches(new byte[]{0, 0, 7, 2}));
+        assertFalse(matcher.matches(new byte[]{0, 0, 7}));
+    }
+
+    @Test
+    public void timeout() throws IOException {
+        Result slow = new Result(), fast = new Result();
+        tracker.submit(RequestTracker.Matcher.prefix("a"), 500, slow);
+        tracker.submit(RequestTracker.Matcher.prefix("b"), 100, fast);
+        idle(99);
+        assertNull(fast.error);
+        idle(1);
+        assertEquals("timeout", fast.error.getMessage());
+        assertNull(slow.error);
+        idle(400);
+        assertEquals("timeout", slow.error.getMessage());
+        assertFalse(tracker.onFrame("a".getBytes()));
+    }
+
+    @Test
+    public void removedRequestNotCompleted() throws IOException {
+        Result result = new Result();
+        RequestTracker.Request request = tracker.submit(RequestTracker.Matcher.prefix("a"), 100, result);
+        tracker.remove(request);
+        assertFalse(tracker.onFrame("a".getBytes()));
+        idle(200);
+        assertNull(result.response);
+        assertNull(result.error);
+    }
+
+    @Test
+    public void outstandingLimit() throws IOException {
+        for(int i = 0; i < RequestTracker.MAX_OUTSTANDING; i++)
+            tracker.submit(RequestTracker.Matcher.prefix("a"), 1000, new Result());
+        try {
+            tracker.submit(RequestTracker.Matcher.prefix("a"), 1000, new Result());
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(tracker.onFrame("a".getBytes()));
+        tracker.submit(RequestTracker.Matcher.prefix("a"), 1000, new Result());
+    }
+
+    @Test
+    public void cancelAll() throws IOException {
+        Result first = new Result(), second = new Result();
+        tracker.submit(RequestTracker.Matcher.prefix("a"), 100, first);
+        tracker.submit(RequestTracker.Matcher.prefix("b"), 100, second);
+        IOException e = new IOException("disconnected");
+        tracker.cancelAll(e);
+        assertEquals(e, first.error);
+        assertEquals(e, second.error);
+        idle(200);
+        assertEquals(e, first.error);
+        assertFalse(tracker.onFrame("a".getBytes()));
+    }
+}
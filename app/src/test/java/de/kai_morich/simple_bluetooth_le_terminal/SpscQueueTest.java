@@ -0,0 +1,60 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SpscQueueTest {
+
+    @Test
+    public void capacityRoundedUp() {
+        SpscQueue<Integer> queue = new SpscQueue<>(5);
+        for(int i = 0; i < 8; i++)
+            assertTrue(queue.offer(i));
+        assertFalse(queue.offer(8));
+        assertEquals(8, queue.size());
+    }
+
+    @Test
+    public void wrap() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        int next = 0, expected = 0;
+        for(int round = 0; round < 10; round++) {
+            for(int i = 0; i < 3; i++)
+                assertTrue(queue.offer(next++));
+            for(int i = 0; i < 3; i++)
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            assertTrue(queue.isEmpty());
+            assertNull(queue.poll());
+        }
+        for(int i = 0; i < 4; i++)
+            assertTrue(queue.offer(next++));
+        assertFalse(queue.offer(next));
+        for(int i = 0; i < 4; i++)
+            assertEquals(Integer.valueOf(expected++), queue.poll());
+    }
+
+    @Test
+    public void producerConsumerThreads() throws InterruptedException {
+        final int count = 100000;
+        SpscQueue<Integer> queue = new SpscQueue<>(16);
+        Thread producer = new Thread(() -> {
+            for(int i = 0; i < count; i++)
+                while(!queue.offer(i))
+                    Thread.yield();
+        });
+        producer.start();
+        for(int expected = 0; expected < count; ) {
+            Integer item = queue.poll();
+            if(item == null)
+                Thread.yield();
+            else
+                assertEquals(expected++, item.intValue());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
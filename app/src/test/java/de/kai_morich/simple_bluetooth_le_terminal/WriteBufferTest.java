@@ -0,0 +1,100 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class WriteBufferTest {
+
+    private static byte[] sequence(int start, int length) {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++)
+            data[i] = (byte) (start + i);
+        return data;
+    }
+
+    @Test
+    public void chunksDoNotSpanWrites() {
+        WriteBuffer buffer = new WriteBuffer(16);
+        buffer.add(sequence(0, 5));
+        buffer.add(sequence(5, 2));
+        assertEquals(7, buffer.size());
+        assertEquals(4, buffer.peekLength(4));
+        assertArrayEquals(sequence(0, 4), buffer.poll(4).clone());
+        assertArrayEquals(sequence(4, 1), buffer.poll(4));
+        assertArrayEquals(sequence(5, 2), buffer.poll(4));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.peekLength(4));
+        assertNull(buffer.poll(4));
+    }
+
+    @Test
+    public void fullChunkArrayReused() {
+        WriteBuffer buffer = new WriteBuffer(16);
+        buffer.add(sequence(0, 12));
+        byte[] first = buffer.poll(4);
+        assertArrayEquals(sequence(0, 4), first);
+        byte[] second = buffer.poll(4);
+        assertSame(first, second);
+        assertArrayEquals(sequence(4, 4), second);
+    }
+
+    @Test
+    public void wrapWhileGrowing() {
+        WriteBuffer buffer = new WriteBuffer(8);
+        buffer.add(sequence(0, 6));
+        assertArrayEquals(sequence(0, 4), buffer.poll(4).clone());
+        buffer.add(sequence(6, 3)); // wraps to start of ring
+        assertEquals(8, buffer.capacity());
+        buffer.add(sequence(9, 10)); // grows while wrapped
+        assertEquals(16, buffer.capacity());
+        assertEquals(15, buffer.size());
+        assertArrayEquals(sequence(4, 2), buffer.poll(4));
+        assertArrayEquals(sequence(6, 3), buffer.poll(4));
+        assertArrayEquals(sequence(9, 4), buffer.poll(4).clone());
+        assertArrayEquals(sequence(13, 4), buffer.poll(4).clone());
+        assertArrayEquals(sequence(17, 2), buffer.poll(4));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void manySlicesWithWrappedHead() {
+        WriteBuffer buffer = new WriteBuffer(4);
+        byte[] expected = sequence(0, 200);
+        int polled = 0;
+        for(int i = 0; i < 100; i++) {
+            buffer.add(expected, i, 1);
+            if(i % 3 == 0)
+                assertEquals(expected[polled++], buffer.poll(8)[0]);
+        }
+        buffer.add(expected, 100, 100);
+        byte[] actual = new byte[200];
+        System.arraycopy(expected, 0, actual, 0, polled);
+        while(!buffer.isEmpty()) {
+            byte[] chunk = buffer.poll(7);
+            System.arraycopy(chunk, 0, actual, polled, chunk.length);
+            polled += chunk.length;
+        }
+        assertEquals(200, polled);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void clear() {
+        WriteBuffer buffer = new WriteBuffer(8);
+        buffer.add(sequence(0, 6));
+        buffer.poll(4);
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.size());
+        buffer.add(sequence(1, 8));
+        assertEquals(8, buffer.capacity());
+        assertArrayEquals(sequence(1, 8), Arrays.copyOf(buffer.poll(8), 8));
+    }
+}